@@ -0,0 +1,289 @@
+package org.evaluator;
+
+import org.experiments.Settings;
+import org.pooling.IRSystem;
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+class PerQueryRelDocs {
+    String qid;
+    Map<String, Integer> relMap; // keyed by docid, entry stores the rel value (read-only once loaded)
+
+    public PerQueryRelDocs(String qid) {
+        this.qid = qid;
+        relMap = new HashMap<>();
+    }
+
+    PerQueryRelDocs(String qid, Map<String, Integer> relMap) {
+        this.qid = qid;
+        this.relMap = Collections.unmodifiableMap(relMap);
+    }
+
+    /*
+    The rel docs as index doc offsets (ascending; docs that aren't in the index are left out),
+    with their ids and rel values in the same order. Resolved once, on first use by the pooling.
+     */
+    volatile int[] relOffsets;
+    String[] relDocIds;
+    int[] relValues;
+    float idcg = -1;
+
+    static final PerQueryRelDocs NONE = new PerQueryRelDocs("", Collections.emptyMap());
+
+    void resolveOffsets() {
+        if (relOffsets == null) {
+            synchronized (this) {
+                if (relOffsets == null)
+                    resolveOffsets(Settings::getDocOffsetFromId);
+            }
+        }
+    }
+
+    void resolveOffsets(ToIntFunction<String> docOffsets) {
+        long[] entries = new long[relMap.size()];  // offset << 32 | index into ids
+        String[] ids = relMap.keySet().toArray(new String[0]);
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            int offset = docOffsets.applyAsInt(ids[i]);
+            if (offset >= 0)
+                entries[n++] = (long)offset << 32 | i;
+        }
+        Arrays.sort(entries, 0, n);
+
+        int[] offsets = new int[n];
+        String[] docIds = new String[n];
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            offsets[i] = (int)(entries[i] >>> 32);
+            docIds[i] = ids[(int)entries[i]];
+            values[i] = relMap.get(docIds[i]);
+        }
+        relDocIds = docIds;
+        relValues = values;
+        relOffsets = offsets;
+    }
+
+    /*
+    The value of a metric for a ranked list of doc offsets (docs[from..to), ranked 1, 2, ...),
+    with relevance found by a binary search over relOffsets, i.e. without resolving the retrieved
+    doc ids or allocating. The metrics are those of MetricAccumulator.
+     */
+    float compute(int[] docs, int from, int to, Metric m) {
+        resolveOffsets();
+        int[] relOffsets = this.relOffsets;
+        if (idcg < 0)
+            idcg = RetrievedResults.calculateIdcg(relMap.size());
+        MetricAccumulator acc = new MetricAccumulator(relMap.size(), idcg);
+
+        for (int i = from; relOffsets.length > 0 && i < to; i++) {
+            if (Arrays.binarySearch(relOffsets, docs[i]) >= 0)
+                acc.addRel(i - from + 1, i - from + 1);
+        }
+        return acc.get(m);
+    }
+
+    void addTuple(String docId, int rel) {
+        if (relMap.get(docId) != null)
+            return;
+        if (rel > 0) {
+            relMap.put(docId, rel);
+        }
+    }
+}
+
+/*
+The relevance assessments of a qrels file. Instances are immutable once constructed (hence
+safe to share across threads and evaluators). AllRelRcds.get(qrelsFile) parses each file once
+per process (re-parsing only if the file changes on disk, which replaces the entry of the
+path, and holding the parsed qrels softly, so that those no longer in use can be reclaimed
+under memory pressure and re-parsed if needed again); the depth-pooled qrels of a set of
+systems are derived from these in memory rather than re-read from the text.
+ */
+public class AllRelRcds {
+    static final Map<String, Registered> registry = new ConcurrentHashMap<>();  // by absolute path
+
+    // the qrels parsed off a file as it was when last modified
+    static class Registered {
+        long lastModified;
+        long length;
+        SoftReference<AllRelRcds> qrels;
+
+        Registered(long lastModified, long length, AllRelRcds qrels) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.qrels = new SoftReference<>(qrels);
+        }
+    }
+
+    String qrelsFile;
+    Map<String, PerQueryRelDocs> perQueryRels;
+    int totalNumRel;
+    List<IRSystem> systems;     // the pool that the qrels are restricted to (null for the full qrels)
+
+    public AllRelRcds(String qrelsFile) {
+        this.qrelsFile = qrelsFile;
+        perQueryRels = new HashMap<>();
+        load();
+        freeze();
+        System.out.println(String.format("Total num rel = %d", perQueryRels.size()));
+    }
+
+    public AllRelRcds(String qrelsFile, List<IRSystem> systems) {
+        this(get(qrelsFile), systems);
+    }
+
+    // The qrels of 'base' restricted to the rel docs retrieved by any of the systems
+    // within its depth for that query
+    AllRelRcds(AllRelRcds base, List<IRSystem> systems) {
+        this.qrelsFile = base.qrelsFile;
+        this.systems = systems;
+        perQueryRels = Collections.unmodifiableMap(
+            base.perQueryRels.values()
+                .parallelStream()
+                .map(perQueryRelDocs -> filter(perQueryRelDocs, systems))
+                .collect(Collectors.toMap(x -> x.qid, x -> x))
+        );
+        totalNumRel = countRels();
+
+        System.out.println("#rels: " +
+        perQueryRels
+            .entrySet()
+            .stream()
+            .collect(Collectors.toMap(e->e.getKey(), e->e.getValue().relMap.size()))
+            .toString()
+        );
+    }
+
+    // Shared, process-wide instance of the file (as long as its last-modified time and length stay the same)
+    public static AllRelRcds get(String qrelsFile) {
+        File file = new File(qrelsFile);
+        long lastModified = file.lastModified(), length = file.length();
+        AllRelRcds[] loaded = new AllRelRcds[1];
+        registry.compute(file.getAbsolutePath(), (path, registered) -> {
+            if (registered != null && registered.lastModified == lastModified && registered.length == length)
+                loaded[0] = registered.qrels.get();
+            if (loaded[0] == null) {
+                loaded[0] = new AllRelRcds(qrelsFile);
+                registered = new Registered(lastModified, length, loaded[0]);
+            }
+            return registered;
+        });
+        return loaded[0];
+    }
+
+    public AllRelRcds filter(List<IRSystem> systems) {
+        return new AllRelRcds(this, systems);
+    }
+
+    public String getQrelsFile() { return qrelsFile; }
+
+    public Set<String> queries() { return perQueryRels.keySet(); }
+
+    // rel docs (docid -> rel value, read-only) of the query; null if it isn't judged
+    public Map<String, Integer> getRelDocs(String qid) {
+        PerQueryRelDocs relInfo = perQueryRels.get(qid);
+        return relInfo==null? null : relInfo.relMap;
+    }
+
+    int getTotalNumRel() { return totalNumRel; }
+
+    int countRels() {
+        int numRel = 0;
+        for (PerQueryRelDocs perQryRelDocs : perQueryRels.values()) {
+            numRel += perQryRelDocs.relMap.size();
+        }
+        return numRel;
+    }
+
+    /*
+    The pool works on doc offsets: each retrieved doc (within the depth of a system) is looked
+    up in the (sorted) offsets of the rel docs, and a hit sets its bit in a bitset over the rel
+    docs of the query, i.e. the union of the top-depth prefixes intersected with the rel set.
+     */
+    PerQueryRelDocs filter(PerQueryRelDocs perQueryRelDocs, List<IRSystem> systems) {
+        String qid = perQueryRelDocs.qid;
+        perQueryRelDocs.resolveOffsets();
+        int[] relOffsets = perQueryRelDocs.relOffsets;
+        long[] pooled = new long[(relOffsets.length + 63) >>> 6];
+
+        for (IRSystem system : systems) {
+            RankedLists lists = system.getRankedLists();
+            int q = lists.indexOf(qid);
+            if (q < 0 || relOffsets.length == 0)
+                continue;
+            int end = Math.min(lists.start(q) + system.getDepth(qid), lists.end(q));
+
+            for (int i = lists.start(q); i < end; i++) {
+                int rel = Arrays.binarySearch(relOffsets, lists.docs[i]);
+                if (rel >= 0)
+                    pooled[rel >>> 6] |= 1L << rel;
+            }
+        }
+
+        Map<String, Integer> newRelMap = new HashMap<>();
+        Map<String, Integer> pooledOffsets = new HashMap<>();
+        for (int w = 0; w < pooled.length; w++) {
+            for (long bits = pooled[w]; bits != 0; bits &= bits - 1) {
+                int rel = (w << 6) + Long.numberOfTrailingZeros(bits);
+                newRelMap.put(perQueryRelDocs.relDocIds[rel], perQueryRelDocs.relValues[rel]);
+                pooledOffsets.put(perQueryRelDocs.relDocIds[rel], relOffsets[rel]);
+            }
+        }
+        PerQueryRelDocs pooledRelDocs = new PerQueryRelDocs(qid, newRelMap);
+        pooledRelDocs.resolveOffsets(pooledOffsets::get);  // known already
+        return pooledRelDocs;
+    }
+
+    private void load() {
+        try (BufferedReader br = new BufferedReader(new FileReader(qrelsFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                storeRelRcd(line);
+            }
+        }
+        catch (Exception ex) { ex.printStackTrace(); }
+    }
+
+    // make the loaded records read-only
+    private void freeze() {
+        for (Map.Entry<String, PerQueryRelDocs> e : perQueryRels.entrySet()) {
+            e.setValue(new PerQueryRelDocs(e.getKey(), e.getValue().relMap));
+        }
+        perQueryRels = Collections.unmodifiableMap(perQueryRels);
+        totalNumRel = countRels();
+    }
+    
+    void storeRelRcd(String line) {
+        String[] tokens = line.split("\\s+");
+        String qid = tokens[0];
+        PerQueryRelDocs relTuple = perQueryRels.get(qid);
+        if (relTuple == null) {
+            relTuple = new PerQueryRelDocs(qid);
+            perQueryRels.put(qid, relTuple);
+        }
+        relTuple.addTuple(tokens[2], Integer.parseInt(tokens[3]));
+    }
+    
+    public String toString() {
+        StringBuffer buff = new StringBuffer();
+        for (Map.Entry<String, PerQueryRelDocs> e : perQueryRels.entrySet()) {
+            PerQueryRelDocs perQryRelDocs = e.getValue();
+            buff.append(e.getKey()).append("\n");
+            for (Map.Entry<String, Integer> rel : perQryRelDocs.relMap.entrySet()) {
+                String docName = rel.getKey();
+                int relVal = rel.getValue();
+                buff.append(docName).append(",").append(relVal).append("\t");
+            }
+            buff.append("\n");
+        }
+        return buff.toString();
+    }
+    
+    PerQueryRelDocs getRelInfo(String qid) {
+        return perQueryRels.get(qid);
+    }
+}
@@ -7,51 +7,113 @@ import org.experiments.Settings;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.ToIntFunction;
 
+/*
+The ranked lists of all queries of a run, held column-wise (see RunColumns) with the rows of
+each query contiguous; the RetrievedResults of a query is a view of its range of rows.
+ */
 public class AllRetrievedResults {
     Map<String, RetrievedResults> allRetMap;
     String resFile;
+    String runName;
     AllRelRcds allRelInfo;
+    RunColumns cols;
 
+    // Reads a TREC run file, or a binary run (see BinaryRun)
     public AllRetrievedResults(String resFile) {
-        String line;
         this.resFile = resFile;
+        File file = new File(resFile);
+        if (BinaryRun.isBinaryRun(file)) {
+            try {
+                load(BinaryRun.open(file));
+                return;
+            }
+            catch (Exception ex) { ex.printStackTrace(); }
+        }
+
+        TRECRunParser.ParsedRun run;
+        try {
+            run = TRECRunParser.parse(file);
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+            run = new TRECRunParser.ParsedRun(0);
+        }
+        runName = run.runName;
+        groupByQuery(run.rows, run.rowQueries, run.qids);
+    }
 
+    void load(BinaryRun binaryRun) {
+        runName = binaryRun.getRunName();
+        cols = new RunColumns(binaryRun);
         allRetMap = new TreeMap<>();
-        try (FileReader fr = new FileReader(resFile);
-             BufferedReader br = new BufferedReader(fr); ) {
-            while ((line = br.readLine()) != null) {
-                storeRetRcd(line);
-            }
+        for (int q = 0; q < binaryRun.numQueries(); q++) {
+            String qid = binaryRun.getQid(q);
+            int start = binaryRun.rowStart(q);
+            allRetMap.put(qid, new RetrievedResults(qid, cols, start, binaryRun.rowStart(q + 1) - start));
         }
-        catch (Exception ex) { ex.printStackTrace(); }
     }
 
     public Set<String> queries() { return this.allRetMap.keySet(); }
 
+    // the run name (the last column) of a run file; null if not known
+    public String getRunName() { return runName; }
+
     public AllRetrievedResults(String qid, TopDocs topDocs) {
+        this(Collections.singletonMap(qid, topDocs));
+    }
+
+    public AllRetrievedResults(Map<String, TopDocs> topDocsMap) {
         allRetMap = new TreeMap<>();
-        RetrievedResults rr = new RetrievedResults(qid);
-        int rank = 1;
-        for (ScoreDoc sd: topDocs.scoreDocs) {
-            rr.addTuple(Settings.getDocIdFromOffset_Mem(sd.doc), rank++, sd.score);
+        int numRows = 0;
+        for (TopDocs topDocs : topDocsMap.values())
+            numRows += topDocs.scoreDocs.length;
+
+        cols = new RunColumns(numRows);
+        for (Map.Entry<String, TopDocs> e : new TreeMap<>(topDocsMap).entrySet()) {
+            int start = cols.size;
+            int rank = 1;
+            for (ScoreDoc sd: e.getValue().scoreDocs) {
+                cols.add(Settings.getDocIdFromOffset_Mem(sd.doc), rank++, sd.score);
+            }
+            allRetMap.put(e.getKey(), new RetrievedResults(e.getKey(), cols, start, cols.size - start));
         }
-        allRetMap.put(qid, rr);
     }
 
-    public RetrievedResults getRetrievedResultsForQueryId(String qid) {
-        return allRetMap.get(qid);
-    }
+    // Lays out the rows of each query contiguously (retaining the file order within a query)
+    void groupByQuery(RunColumns rows, int[] rowQueries, List<String> qids) {
+        int numQueries = qids.size();
+        int[] offsets = new int[numQueries + 1];
+        for (int i = 0; i < rows.size; i++)
+            offsets[rowQueries[i] + 1]++;
+        for (int q = 0; q < numQueries; q++)
+            offsets[q + 1] += offsets[q];
+
+        boolean grouped = true;
+        for (int i = 1; i < rows.size && grouped; i++)
+            grouped = rowQueries[i] >= rowQueries[i - 1];
+
+        if (grouped) {
+            cols = rows;
+        }
+        else {
+            int[] order = new int[rows.size];
+            int[] next = Arrays.copyOf(offsets, numQueries);
+            for (int i = 0; i < rows.size; i++)
+                order[next[rowQueries[i]]++] = i;
+            cols = rows.permute(order);
+        }
 
-    void storeRetRcd(String line) {
-        String[] tokens = line.split("\\s+");
-        String qid = tokens[0];
-        RetrievedResults res = allRetMap.get(qid);
-        if (res == null) {
-            res = new RetrievedResults(qid);
-            allRetMap.put(qid, res);
+        allRetMap = new TreeMap<>();
+        for (int q = 0; q < numQueries; q++) {
+            String qid = qids.get(q);
+            allRetMap.put(qid, new RetrievedResults(qid, cols, offsets[q], offsets[q + 1] - offsets[q]));
         }
-        res.addTuple(tokens[2], Integer.parseInt(tokens[3]), Double.parseDouble(tokens[4]));
+    }
+
+    public RetrievedResults getRetrievedResultsForQueryId(String qid) {
+        return allRetMap.get(qid);
     }
 
     public String toString() {
@@ -74,13 +136,50 @@ public class AllRetrievedResults {
     }
 
     public double compute(String qid, Metric m) {
-        double res = 0;
-        RetrievedResults rr = allRetMap.get(qid);
-        switch (m) {
-            case AP: res = rr.computeAP(); break;
-            case P_10: res = rr.precAtTop(10); break;
-            case Recall: res = rr.computeRecall(); break;
-            case nDCG: res = rr.computeNdcg();
+        return allRetMap.get(qid).evaluate().get(m);
+    }
+
+    public double compute(String qid, MetricCutOff m) {
+        return allRetMap.get(qid).evaluate().get(m);
+    }
+
+    public MetricValues evaluate(String qid) {
+        return allRetMap.get(qid).evaluate();
+    }
+
+    // [query][metric] matrix; every metric of a query costs one scan of its list
+    public double[][] compute(List<String> qids, Metric[] metrics) {
+        double[][] res = new double[qids.size()][metrics.length];
+        for (int i = 0; i < res.length; i++) {
+            MetricValues values = allRetMap.get(qids.get(i)).evaluate();
+            for (int j = 0; j < metrics.length; j++)
+                res[i][j] = values.get(metrics[j]);
+        }
+        return res;
+    }
+
+    public double[][] compute(List<String> qids, MetricCutOff[] metrics) {
+        double[][] res = new double[qids.size()][metrics.length];
+        for (int i = 0; i < res.length; i++) {
+            MetricValues values = allRetMap.get(qids.get(i)).evaluate();
+            for (int j = 0; j < metrics.length; j++)
+                res[i][j] = values.get(metrics[j]);
+        }
+        return res;
+    }
+
+    // Values of the metric at each of the (ascending) cutoffs, in one pass over the list of the query
+    public double[] computeAtCutoffs(String qid, Metric m, int[] cutoffs) {
+        return computeAllAtCutoffs(qid, cutoffs)[m.ordinal()];
+    }
+
+    // Values of every Metric ([Metric.ordinal()][cutoff]) at each of the (ascending) cutoffs, in one pass
+    public double[][] computeAllAtCutoffs(String qid, int[] cutoffs) {
+        float[][] values = allRetMap.get(qid).evaluateAtCutoffs(cutoffs);
+        double[][] res = new double[values.length][cutoffs.length];
+        for (int j = 0; j < values.length; j++) {
+            for (int i = 0; i < cutoffs.length; i++)
+                res[j][i] = values[j][i];
         }
         return res;
     }
@@ -110,14 +209,19 @@ public class AllRetrievedResults {
     }
 
     public Map<String, TopDocs> castToTopDocs() {
+        return castToTopDocs(Settings::getDocOffsetFromId_Mem);
+    }
+
+    // with the doc names resolved by docOffsets (-1 for a doc that isn't in the index, which is dropped)
+    Map<String, TopDocs> castToTopDocs(ToIntFunction<String> docOffsets) {
         Map<String, TopDocs> topDocsMap = new HashMap<>();
         for (RetrievedResults rr: allRetMap.values()) {
-            int numret = rr.rtuples.size();
+            int numret = rr.length;
             List<ScoreDoc> scoreDocs = new ArrayList<>();
-            for (ResultTuple tuple: rr.rtuples) {
-                int docOffset = Settings.getDocOffsetFromId_Mem(tuple.docName);
-                if (docOffset>0)
-                    scoreDocs.add(new ScoreDoc(docOffset, (float)tuple.score));
+            for (int i = rr.start; i < rr.start + rr.length; i++) {
+                int docOffset = docOffsets.applyAsInt(rr.cols.docName(i));
+                if (docOffset>=0)
+                    scoreDocs.add(new ScoreDoc(docOffset, rr.cols.scores[i]));
             }
             ScoreDoc[] scoreDocArray = new ScoreDoc[scoreDocs.size()];
             scoreDocArray = scoreDocs.toArray(scoreDocArray);
@@ -0,0 +1,273 @@
+package org.evaluator;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+Binary columnar form of a TREC run, i.e. what a RunColumns holds, so that a run that is
+re-read across experiments is loaded with a single mmap and no parsing: the columns are bulk
+copied out of the mapping, and the doc name dictionary is used in place (names are read off a
+blob by ordinal, and looked up through an open-addressing hash table stored in the file).
+AllRetrievedResults (and hence IRSystem, OverlapStats etc.) recognizes the format by its magic
+number and reads either form of a run interchangeably. Use main() (trec2bin) to convert.
+
+Layout (big endian): int MAGIC, int VERSION, int numQueries, int numDocs, int numRows,
+    int runNameLength, byte[] runName, padding to a multiple of 4,
+    int[numQueries+1] rowStarts (the rows of a query are contiguous),
+    int[numQueries+1] qidStarts, byte[] qid blob, padding,
+    int[numDocs+1] nameStarts, byte[] doc name blob, padding,
+    int capacity, int[capacity] slots (doc ordinal+1, linear probing over the murmur3 hash of the name),
+    int[numRows] docs (ordinals), int[numRows] ranks, float[numRows] scores
+ */
+public class BinaryRun {
+    static final int MAGIC = 0x51505242; // "QPRB"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 6*4;
+
+    ByteBuffer buff;
+    String runName;
+    int numQueries;
+    int numDocs;
+    int numRows;
+    int rowStartsPos;
+    int qidStartsPos;
+    int qidBlobPos;
+    int nameStartsPos;
+    int nameBlobPos;
+    int tablePos;
+    int mask;       // capacity - 1 (capacity is a power of 2)
+    int docsPos;
+    int ranksPos;
+    int scoresPos;
+
+    BinaryRun(ByteBuffer buff) {
+        this.buff = buff;
+        numQueries = buff.getInt(8);
+        numDocs = buff.getInt(12);
+        numRows = buff.getInt(16);
+        int runNameLength = buff.getInt(20);
+        runName = runNameLength==0? null : new String(bytes(HEADER_SIZE, runNameLength), StandardCharsets.UTF_8);
+
+        rowStartsPos = align(HEADER_SIZE + runNameLength);
+        qidStartsPos = rowStartsPos + 4*(numQueries + 1);
+        qidBlobPos = qidStartsPos + 4*(numQueries + 1);
+        nameStartsPos = align(qidBlobPos + buff.getInt(qidStartsPos + 4*numQueries));
+        nameBlobPos = nameStartsPos + 4*(numDocs + 1);
+        int capacityPos = align(nameBlobPos + buff.getInt(nameStartsPos + 4*numDocs));
+        mask = buff.getInt(capacityPos) - 1;
+        tablePos = capacityPos + 4;
+        docsPos = tablePos + 4*(mask + 1);
+        ranksPos = docsPos + 4*numRows;
+        scoresPos = ranksPos + 4*numRows;
+    }
+
+    static int align(int pos) { return (pos + 3) & ~3; }
+
+    static int tableCapacity(int numDocs) {
+        int capacity = 2;
+        while (capacity < 2L*numDocs)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    static int hash(byte[] bytes, int offset, int length) {
+        return StringHelper.murmurhash3_x86_32(bytes, offset, length, 0x9747b28c);
+    }
+
+    public static boolean isBinaryRun(File file) {
+        if (!file.isFile() || file.length() < HEADER_SIZE)
+            return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        }
+        catch (IOException ex) {
+            return false;
+        }
+    }
+
+    public static BinaryRun open(File file) throws IOException {
+        ByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION)
+            throw new IOException(String.format("%s is not a binary run (of version %d)", file, VERSION));
+        return new BinaryRun(mapped);
+    }
+
+    public static void write(AllRetrievedResults run, File file) throws IOException {
+        RunColumns cols = run.cols;
+        int numQueries = run.allRetMap.size();
+        int numDocs = cols==null? 0 : cols.numDocNames();
+
+        ByteArrayOutputStream qidBlob = new ByteArrayOutputStream();
+        int[] rowStarts = new int[numQueries + 1];
+        int[] qidStarts = new int[numQueries + 1];
+        int q = 0;
+        for (RetrievedResults rr: run.allRetMap.values()) {
+            qidStarts[q] = qidBlob.size();
+            qidBlob.write(rr.qid.getBytes(StandardCharsets.UTF_8));
+            rowStarts[q + 1] = rowStarts[q] + rr.length;
+            q++;
+        }
+        qidStarts[numQueries] = qidBlob.size();
+
+        ByteArrayOutputStream nameBlob = new ByteArrayOutputStream(numDocs * 10);
+        int[] nameStarts = new int[numDocs + 1];
+        BytesRef name = new BytesRef();
+        for (int ord = 0; ord < numDocs; ord++) {
+            nameStarts[ord] = nameBlob.size();
+            cols.docNameBytes(ord, name);
+            nameBlob.write(name.bytes, name.offset, name.length);
+        }
+        nameStarts[numDocs] = nameBlob.size();
+        byte[] names = nameBlob.toByteArray();
+        int[] slots = new int[tableCapacity(numDocs)];
+        for (int ord = 0; ord < numDocs; ord++) {
+            int slot = hash(names, nameStarts[ord], nameStarts[ord + 1] - nameStarts[ord]) & (slots.length - 1);
+            while (slots[slot] != 0)
+                slot = (slot + 1) & (slots.length - 1);
+            slots[slot] = ord + 1;
+        }
+
+        byte[] runName = run.runName==null? new byte[0] : run.runName.getBytes(StandardCharsets.UTF_8);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numQueries);
+            out.writeInt(numDocs);
+            out.writeInt(rowStarts[numQueries]);
+            out.writeInt(runName.length);
+            out.write(runName);
+            pad(out);
+            writeInts(out, rowStarts);
+            writeInts(out, qidStarts);
+            qidBlob.writeTo(out);
+            pad(out);
+            writeInts(out, nameStarts);
+            out.write(names);
+            pad(out);
+            out.writeInt(slots.length);
+            writeInts(out, slots);
+
+            for (RetrievedResults rr: run.allRetMap.values())
+                for (int i = rr.start; i < rr.start + rr.length; i++)
+                    out.writeInt(cols.docs[i]);
+            for (RetrievedResults rr: run.allRetMap.values())
+                for (int i = rr.start; i < rr.start + rr.length; i++)
+                    out.writeInt(cols.ranks[i]);
+            for (RetrievedResults rr: run.allRetMap.values())
+                for (int i = rr.start; i < rr.start + rr.length; i++)
+                    out.writeFloat(cols.scores[i]);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value: values)
+            out.writeInt(value);
+    }
+
+    static void pad(DataOutputStream out) throws IOException {
+        while ((out.size() & 3) != 0)
+            out.write(0);
+    }
+
+    byte[] bytes(int pos, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buff.get(pos + i);
+        return bytes;
+    }
+
+    public String getRunName() { return runName; }
+
+    public int numQueries() { return numQueries; }
+
+    public int numRows() { return numRows; }
+
+    public String getQid(int q) {
+        int start = buff.getInt(qidStartsPos + 4*q);
+        int end = buff.getInt(qidStartsPos + 4*(q + 1));
+        return new String(bytes(qidBlobPos + start, end - start), StandardCharsets.UTF_8);
+    }
+
+    // the rows of the q-th query are [rowStart(q), rowStart(q+1))
+    public int rowStart(int q) { return buff.getInt(rowStartsPos + 4*q); }
+
+    int numDocs() { return numDocs; }
+
+    // Only absolute reads on the shared buffer, hence safe to call from multiple threads
+    BytesRef docName(int ordinal, BytesRef name) {
+        int start = buff.getInt(nameStartsPos + 4*ordinal);
+        int end = buff.getInt(nameStartsPos + 4*(ordinal + 1));
+        name.bytes = bytes(nameBlobPos + start, end - start);
+        name.offset = 0;
+        name.length = name.bytes.length;
+        return name;
+    }
+
+    // -1 if the doc doesn't appear in the run
+    int findDoc(BytesRef name) {
+        int slot = hash(name.bytes, name.offset, name.length) & mask;
+        int entry;
+        while ((entry = buff.getInt(tablePos + 4*slot)) != 0) {
+            if (matches(entry - 1, name))
+                return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    boolean matches(int ordinal, BytesRef name) {
+        int start = buff.getInt(nameStartsPos + 4*ordinal);
+        int end = buff.getInt(nameStartsPos + 4*(ordinal + 1));
+        if (end - start != name.length)
+            return false;
+        for (int i = 0; i < name.length; i++) {
+            if (buff.get(nameBlobPos + start + i) != name.bytes[name.offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    // bulk copies of the columns
+    void readColumns(int[] docs, int[] ranks, float[] scores) {
+        column(docsPos).asIntBuffer().get(docs, 0, numRows);
+        column(ranksPos).asIntBuffer().get(ranks, 0, numRows);
+        column(scoresPos).asFloatBuffer().get(scores, 0, numRows);
+    }
+
+    ByteBuffer column(int pos) {
+        ByteBuffer column = buff.duplicate();
+        column.position(pos);
+        return column.slice();
+    }
+
+    // trec2bin: converts a TREC run file (plain or compressed) into the binary form
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java org.evaluator.BinaryRun <TREC run file> [<binary run file>]");
+            return;
+        }
+        try {
+            File out = new File(args.length > 1? args[1] : args[0] + ".bin");
+            AllRetrievedResults run = new AllRetrievedResults(args[0]);
+            write(run, out);
+            System.out.println(String.format("Wrote %d queries (%d rows) of run %s to %s",
+                    run.allRetMap.size(), run.cols==null? 0 : run.cols.size, run.runName, out));
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -5,178 +5,39 @@
 package org.evaluator;
 
 import org.apache.lucene.search.MultiCollectorManager;
-import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.experiments.Settings;
 import org.pooling.IRSystem;
 import java.io.*;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  *
  * @author Debasis
  */
 
-class PerQueryRelDocs {
-    String qid;
-    Map<String, Integer> relMap; // keyed by docid, entry stores the rel value
-
-    public PerQueryRelDocs(String qid) {
-        this.qid = qid;
-        relMap = new HashMap<>();
-    }
-
-    void addTuple(String docId, int rel) {
-        if (relMap.get(docId) != null)
-            return;
-        if (rel > 0) {
-            relMap.put(docId, rel);
-        }
-    }
-}
-
-class AllRelRcds {
-    String qrelsFile;
-    Map<String, PerQueryRelDocs> perQueryRels;
-    int totalNumRel;
-    List<IRSystem> systems;
-    Map<String, Boolean> inducedRel;    // a map from docid to a boolean
-                                        // which is true if each system retrieves this doc
-                                        // at rank < depth for that query
-
-    public AllRelRcds(String qrelsFile) {
-        this.qrelsFile = qrelsFile;
-        perQueryRels = new HashMap<>();
-        totalNumRel = 0;
-        load();
-        System.out.println(String.format("Total num rel = %d", perQueryRels.size()));
-    }
-
-    public AllRelRcds(String qrelsFile, List<IRSystem> systems) {
-        this.qrelsFile = qrelsFile;
-        this.systems = systems;
-        perQueryRels = new HashMap<>();
-        totalNumRel = 0;
-        load();
-    }
-
-    int getTotalNumRel() {
-        if (totalNumRel > 0)
-            return totalNumRel;
-        
-        for (Map.Entry<String, PerQueryRelDocs> e : perQueryRels.entrySet()) {
-            PerQueryRelDocs perQryRelDocs = e.getValue();
-            totalNumRel += perQryRelDocs.relMap.size();
-        }
-        return totalNumRel;
-    }
-
-    void filter(IRSystem system, String qid) {
-        TopDocs topDocs = system.getTopDocs(qid);
-        int depth = system.getDepth(qid);
-
-        for (int i=0; i < Math.min(depth, topDocs.scoreDocs.length); i++) {
-            ScoreDoc sd = topDocs.scoreDocs[i];
-            String docId = Settings.getDocIdFromOffset(sd.doc);
-            Boolean rel = inducedRel.get(docId);
-            if (rel==null)
-                continue;
-            inducedRel.put(docId, true);
-        }
-    }
-
-    private void load() {
-        try {
-            FileReader fr = new FileReader(qrelsFile);
-            BufferedReader br = new BufferedReader(fr);
-            String line;
-
-            while ((line = br.readLine()) != null) {
-                storeRelRcd(line);
-            }
-            br.close();
-            fr.close();
-
-            // TODO: We need to make this a faster operation
-            // filter out the relevant documents that appear beyond the depth cut-off
-            if (systems != null) {
-                // init every rel doc to true
-                for (String qid : this.perQueryRels.keySet()) {
-                    PerQueryRelDocs perQueryRelDocs = perQueryRels.get(qid);
-                    inducedRel = perQueryRelDocs.relMap.keySet().stream().collect(Collectors.toMap(x -> x, x -> false));
-                    for (IRSystem system : systems) {
-                        filter(system, qid);
-                    }
-
-                    // Now leave out the ones whose indicator is false...
-                    Set<String> filteredRelDocs =
-                            inducedRel.entrySet().stream()
-                                    .filter(e -> e.getValue() == true)
-                                    .map(e -> e.getKey()).collect(Collectors.toSet());
-
-                    Map<String, Integer> newRelMap = new HashMap<>();
-                    for (String docId : filteredRelDocs) {
-                        newRelMap.put(docId, perQueryRelDocs.relMap.get(docId));
-                    }
-                    perQueryRelDocs.relMap = newRelMap;
-                }
-
-                System.out.println("#rels: " +
-                perQueryRels
-                    .entrySet()
-                    .stream()
-                    .collect(Collectors.toMap(e->e.getKey(), e->e.getValue().relMap.size()))
-                    .toString()
-                );
-            }
-        }
-        catch (Exception ex) { ex.printStackTrace(); }
-    }
-    
-    void storeRelRcd(String line) {
-        String[] tokens = line.split("\\s+");
-        String qid = tokens[0];
-        PerQueryRelDocs relTuple = perQueryRels.get(qid);
-        if (relTuple == null) {
-            relTuple = new PerQueryRelDocs(qid);
-            perQueryRels.put(qid, relTuple);
-        }
-        relTuple.addTuple(tokens[2], Integer.parseInt(tokens[3]));
-    }
-    
-    public String toString() {
-        StringBuffer buff = new StringBuffer();
-        for (Map.Entry<String, PerQueryRelDocs> e : perQueryRels.entrySet()) {
-            PerQueryRelDocs perQryRelDocs = e.getValue();
-            buff.append(e.getKey()).append("\n");
-            for (Map.Entry<String, Integer> rel : perQryRelDocs.relMap.entrySet()) {
-                String docName = rel.getKey();
-                int relVal = rel.getValue();
-                buff.append(docName).append(",").append(relVal).append("\t");
-            }
-            buff.append("\n");
-        }
-        return buff.toString();
-    }
-    
-    PerQueryRelDocs getRelInfo(String qid) {
-        return perQueryRels.get(qid);
-    }
-}
-
 public class Evaluator {
     AllRelRcds relRcds;
     AllRetrievedResults retRcds;
 
     public Evaluator(String qrelsFile, String resFile) {
-        relRcds = new AllRelRcds(qrelsFile);
+        relRcds = AllRelRcds.get(qrelsFile);
         retRcds = new AllRetrievedResults(resFile);
         fillRelInfo();
     }
 
+    // In-memory evaluation of retrieved lists against qrels that are already loaded,
+    // i.e. without going through a TREC run file on disk.
+    public Evaluator(AllRelRcds relRcds, Map<String, TopDocs> topDocsMap) {
+        this.relRcds = relRcds;
+        retRcds = new AllRetrievedResults(topDocsMap);
+        fillRelInfo();
+    }
+
     public Evaluator(String qrelsFile, List<IRSystem> systems) {
-        relRcds = new AllRelRcds(qrelsFile, systems);
+        relRcds = AllRelRcds.get(qrelsFile).filter(systems);
     }
 
     public Evaluator(Properties prop) {
@@ -201,18 +62,65 @@ public class Evaluator {
         return retRcds.compute(qid, m);
     }
 
-    public double compute(String qid, IRSystem system, Metric m) {
-        // load retrieved tuples from memory instead of loading from file
-        retRcds = new AllRetrievedResults(qid, system.getTopDocs(qid));
-        retRcds.fillRelInfo(this.relRcds);
+    public double compute(String qid, MetricCutOff m) {
         return retRcds.compute(qid, m);
     }
 
+    public MetricValues evaluate(String qid) {
+        return retRcds.evaluate(qid);
+    }
+
+    // [query][metric] matrix
+    public double[][] compute(List<String> qids, Metric[] metrics) {
+        return retRcds.compute(qids, metrics);
+    }
+
+    public double[][] compute(List<String> qids, MetricCutOff[] metrics) {
+        return retRcds.compute(qids, metrics);
+    }
+
+    public double[] computeAtCutoffs(String qid, Metric m, int[] cutoffs) {
+        return retRcds.computeAtCutoffs(qid, m, cutoffs);
+    }
+
+    // [Metric.ordinal()][cutoff]
+    public double[][] computeAllAtCutoffs(String qid, int[] cutoffs) {
+        return retRcds.computeAllAtCutoffs(qid, cutoffs);
+    }
+
+    // evaluates the (in-memory) ranked list of the system directly against the rel doc offsets of the query
+    public double compute(String qid, IRSystem system, Metric m) {
+        return compute(relInfo(qid), system.getRankedLists(), qid, m);
+    }
+
+    static double compute(PerQueryRelDocs relInfo, RankedLists lists, String qid, Metric m) {
+        int q = lists.indexOf(qid);
+        return q < 0? relInfo.compute(lists.docs, 0, 0, m) : relInfo.compute(lists.docs, lists.start(q), lists.end(q), m);
+    }
+
+    // [system][query] matrix of the metric (systems evaluated in parallel)
+    public double[][] compute(List<IRSystem> systems, List<String> qids, Metric m) {
+        PerQueryRelDocs[] relInfos = qids.stream().map(this::relInfo).toArray(PerQueryRelDocs[]::new);
+        double[][] res = new double[systems.size()][qids.size()];
+        IntStream.range(0, res.length).parallel().forEach(i -> {
+            RankedLists lists = systems.get(i).getRankedLists();
+            for (int j = 0; j < relInfos.length; j++)
+                res[i][j] = compute(relInfos[j], lists, qids.get(j), m);
+        });
+        return res;
+    }
+
+    PerQueryRelDocs relInfo(String qid) {
+        PerQueryRelDocs relInfo = relRcds.getRelInfo(qid);
+        return relInfo==null? PerQueryRelDocs.NONE : relInfo;
+    }
+
     @Override
     public String toString() {
         StringBuffer buff = new StringBuffer();
         buff.append(relRcds.toString()).append("\n");
-        buff.append(retRcds.toString());
+        if (retRcds != null)
+            buff.append(retRcds.toString());
         return buff.toString();
     }
 
@@ -0,0 +1,135 @@
+package org.evaluator;
+
+import org.apache.commons.math3.stat.correlation.KendallsCorrelation;
+
+import java.util.stream.IntStream;
+
+/*
+Pool reusability by leaving one run out: how a run fares when the rel docs that only it
+contributed to the pool are taken out of the pool (i.e. as if it hadn't been judged along with
+the others), and how the ranking of all the systems changes with that.
+
+Works off the rel hits of a PoolDepthSweep. For the pool of the given per-query depths the number
+of systems that contribute each rel doc is counted once; leaving a run out then removes just its
+rel docs with a count of 1, which only changes the pool (and hence the APs of the systems) on
+the queries that have such docs. Every other query keeps the APs of the full pool, so each run
+out costs an evaluation of the affected queries alone. The runs are left out in parallel.
+ */
+public class LeaveOneOutPool {
+    PoolDepthSweep hits;
+    int[][] depths;         // [system][query]
+    int[][] contributors;   // [query][rel ordinal] #systems with the rel doc within their depth
+    int[] numRel;           // [query] #pooled rel docs
+    double[][] aps;         // [system][query] APs against the full pool
+    double[] maps;          // [system] MAPs against the full pool
+
+    public static class Result {
+        public String name;
+        public int numUnique;       // #rel docs in the pool that no other run contributed
+        public int numQueries;      // #queries whose pool changes without the run
+        public double map;          // against the full pool
+        public double looMap;       // against the pool without the run's unique rel docs
+        public double tau;          // Kendall's between the MAPs of all the systems with and without the run
+
+        public double shift() { return map - looMap; }
+
+        public String toString() {
+            return String.format("%s\tunique=%d\tqueries=%d\tMAP=%.4f\tLOO-MAP=%.4f\tshift=%.4f\ttau=%.4f",
+                    name, numUnique, numQueries, map, looMap, shift(), tau);
+        }
+    }
+
+    public LeaveOneOutPool(PoolDepthSweep hits, int[][] depths) {
+        this.hits = hits;
+        this.depths = depths;
+        int numQueries = hits.qids.size();
+        int numSystems = hits.systems.size();
+        contributors = new int[numQueries][];
+        numRel = new int[numQueries];
+        aps = new double[numSystems][numQueries];
+        maps = new double[numSystems];
+
+        IntStream.range(0, numQueries).parallel().forEach(q -> {
+            contributors[q] = new int[hits.entryDepths[q].length];
+            for (int s = 0; s < numSystems; s++) {
+                int[] ranks = hits.relRanks[q][s];
+                for (int j = 0; j < ranks.length && ranks[j] <= depths[s][q]; j++)
+                    contributors[q][hits.relOrdinals[q][s][j]]++;
+            }
+            for (int count : contributors[q])
+                numRel[q] += count > 0? 1 : 0;
+            for (int s = 0; s < numSystems; s++)
+                aps[s][q] = ap(q, s, null, numRel[q]);
+        });
+        for (int s = 0; s < numSystems; s++) {
+            for (double ap : aps[s])
+                maps[s] += ap;
+            maps[s] /= numQueries;
+        }
+    }
+
+    // AP of system s on query q against the pooled rel docs, less the removed ones (if any)
+    double ap(int q, int s, boolean[] removed, int numRel) {
+        int[] ranks = hits.relRanks[q][s];
+        int[] ordinals = hits.relOrdinals[q][s];
+        MetricAccumulator acc = new MetricAccumulator(numRel);
+        for (int j = 0; j < ranks.length; j++) {
+            int rel = ordinals[j];
+            if (contributors[q][rel] > 0 && (removed == null || !removed[rel]))
+                acc.addRel(ranks[j], ranks[j]);
+        }
+        return acc.get(Metric.AP);
+    }
+
+    Result leaveOut(int r) {
+        int numQueries = hits.qids.size();
+        int numSystems = hits.systems.size();
+        Result result = new Result();
+        result.name = hits.systems.get(r).getName();
+        result.map = maps[r];
+
+        double[] looMaps = maps.clone();
+        for (int q = 0; q < numQueries; q++) {
+            int[] ranks = hits.relRanks[q][r];
+            boolean[] removed = null;   // the rel docs that only the run contributes
+            int numUnique = 0;
+            for (int j = 0; j < ranks.length && ranks[j] <= depths[r][q]; j++) {
+                int rel = hits.relOrdinals[q][r][j];
+                if (contributors[q][rel] == 1) {
+                    if (removed == null)
+                        removed = new boolean[contributors[q].length];
+                    removed[rel] = true;
+                    numUnique++;
+                }
+            }
+            if (numUnique == 0)
+                continue;
+
+            result.numUnique += numUnique;
+            result.numQueries++;
+            for (int s = 0; s < numSystems; s++)
+                looMaps[s] += (ap(q, s, removed, numRel[q] - numUnique) - aps[s][q])/numQueries;
+        }
+        result.looMap = looMaps[r];
+        result.tau = numSystems < 2? 1 : new KendallsCorrelation().correlation(maps, looMaps);
+        return result;
+    }
+
+    // A result per run (in the order of the systems), the runs left out in parallel
+    public Result[] leaveEachOut() {
+        return IntStream.range(0, hits.systems.size()).parallel()
+                .mapToObj(this::leaveOut)
+                .toArray(Result[]::new);
+    }
+
+    // Kendall's between the MAPs against the full pool and those of each run with it left out
+    public static double tau(Result[] results) {
+        double[] maps = new double[results.length];
+        double[] looMaps = new double[results.length];
+        for (int i = 0; i < results.length; i++) {
+            maps[i] = results[i].map;
+            looMaps[i] = results[i].looMap;
+        }
+        return results.length < 2? 1 : new KendallsCorrelation().correlation(maps, looMaps);
+    }
+}
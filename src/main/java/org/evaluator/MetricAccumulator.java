@@ -0,0 +1,56 @@
+package org.evaluator;
+
+/*
+The arithmetic of every Metric over one ranked list, fed with the rel docs of the list in list
+order; whichever way an evaluation path tells the rel docs apart (the rels column of a run, a
+binary search over the rel doc offsets of a query, the rel docs in a pool), the metric values
+all come from here, so that their definitions can't drift apart.
+ */
+public final class MetricAccumulator {
+    int numRel;
+    float idcg;         // -1 until needed
+    float prec;         // sum of the precisions at the rel docs
+    float dcg;
+    int numRelSeen;
+    int numRelAtTop;    // within the top 10
+
+    public MetricAccumulator(int numRel) {
+        this(numRel, -1);
+    }
+
+    // with the idcg of numRel rel docs computed already (see RetrievedResults.calculateIdcg)
+    MetricAccumulator(int numRel, float idcg) {
+        this.numRel = numRel;
+        this.idcg = idcg;
+    }
+
+    /*
+    A rel doc at the given (1-based) position of the list, retrieved at the given rank: the AP
+    is over the ranks (those of a run file may skip), P@10 and nDCG over the positions.
+     */
+    public void addRel(int position, int rank) {
+        numRelSeen++;
+        prec += numRelSeen/(float)rank;
+        if (position <= 10)
+            numRelAtTop++;
+        dcg += Math.log(2) / Math.log(position + 1); // binary relevance
+    }
+
+    public float get(Metric m) {
+        switch (m) {
+            case AP: return numRel==0? 0 : prec/(float)numRel;
+            case P_10: return numRelAtTop/(float)10;
+            case Recall: return numRelSeen/(float)numRel;
+            default:
+                if (idcg < 0)
+                    idcg = RetrievedResults.calculateIdcg(numRel);
+                return idcg==0? 0 : dcg/idcg;
+        }
+    }
+
+    // the value of every Metric so far into values[Metric.ordinal()][c]
+    void getAll(float[][] values, int c) {
+        for (Metric m : Metric.values())
+            values[m.ordinal()][c] = get(m);
+    }
+}
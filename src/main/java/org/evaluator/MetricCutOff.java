@@ -12,13 +12,25 @@ package org.evaluator;
  */
 
 public enum MetricCutOff {
-    AP_10,
-    AP_100,
-    AP_1000,
-    Recall_10,
-    Recall_100,
-    Recall_1000,
-    nDCG_10,
-    nDCG_100,
-    nDCG_1000
+    AP_10(Metric.AP, 10),
+    AP_100(Metric.AP, 100),
+    AP_1000(Metric.AP, 1000),
+    Recall_10(Metric.Recall, 10),
+    Recall_100(Metric.Recall, 100),
+    Recall_1000(Metric.Recall, 1000),
+    nDCG_10(Metric.nDCG, 10),
+    nDCG_100(Metric.nDCG, 100),
+    nDCG_1000(Metric.nDCG, 1000);
+
+    Metric metric;
+    int cutoff;
+
+    MetricCutOff(Metric metric, int cutoff) {
+        this.metric = metric;
+        this.cutoff = cutoff;
+    }
+
+    public Metric getMetric() { return metric; }
+
+    public int getCutoff() { return cutoff; }
 }
@@ -0,0 +1,32 @@
+package org.evaluator;
+
+/*
+Every Metric and MetricCutOff value of one ranked list, as produced by a single scan
+of the list (RetrievedResults.evaluate).
+ */
+public class MetricValues {
+    static final int[] CUTOFFS = {10, 100, 1000, Integer.MAX_VALUE}; // the last one is the full list
+    static final int FULL = CUTOFFS.length - 1;
+
+    float[][] values; // [Metric.ordinal()][index in CUTOFFS]
+
+    MetricValues(float[][] values) {
+        this.values = values;
+    }
+
+    public double get(Metric m) {
+        return values[m.ordinal()][FULL];
+    }
+
+    public double get(MetricCutOff m) {
+        return values[m.getMetric().ordinal()][cutoffIndex(m.getCutoff())];
+    }
+
+    static int cutoffIndex(int cutoff) {
+        for (int i = 0; i < CUTOFFS.length; i++) {
+            if (CUTOFFS[i] == cutoff)
+                return i;
+        }
+        throw new IllegalArgumentException("No metric values at cutoff " + cutoff);
+    }
+}
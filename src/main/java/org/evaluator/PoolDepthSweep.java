@@ -0,0 +1,210 @@
+package org.evaluator;
+
+import org.pooling.IRSystem;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/*
+Evaluation of a set of systems against the qrels restricted to their depth-d pool, for every
+depth d at once (or for given per-query depths), i.e. what building a depth-filtered Evaluator
+per depth (see AllRelRcds.filter) and re-evaluating every system with it would compute.
+
+The rel docs of each query are laid out once as ordinals (into the sorted rel doc offsets of
+the query), and for each system the (rank, rel ordinal) pairs of the rel docs in its list are
+recorded, along with the depth at which each rel doc enters the pool (its best rank across
+the systems). Growing the pool from depth 1 only ever adds rel docs (in the order of their
+entry depth), and the sum of precisions of a system is updated incrementally as each one is
+added: the new doc contributes (#pooled rel docs at or above its rank)/rank, and each pooled
+rel doc ranked below it gains 1/(its rank). Both are prefix/suffix sums over the positions of
+the rel docs of the system, kept in Fenwick trees, so a sweep of all depths costs about as
+much as one evaluation.
+ */
+public class PoolDepthSweep {
+    List<IRSystem> systems;
+    List<String> qids;
+    boolean[] judged;       // whether the query has qrels
+    int[][] entryDepths;    // [query][rel ordinal] best rank of the rel doc over the systems (MAX_VALUE if not retrieved)
+    int[][][] relRanks;     // [query][system] ranks of the rel docs retrieved by the system (ascending)
+    int[][][] relOrdinals;  // [query][system] their rel ordinals
+
+    public PoolDepthSweep(String qrelsFile, List<IRSystem> systems, List<String> qids) {
+        this(AllRelRcds.get(qrelsFile), systems, qids);
+    }
+
+    PoolDepthSweep(AllRelRcds relRcds, List<IRSystem> systems, List<String> qids) {
+        this.systems = systems;
+        this.qids = qids;
+        int numQueries = qids.size();
+        judged = new boolean[numQueries];
+        entryDepths = new int[numQueries][];
+        relRanks = new int[numQueries][][];
+        relOrdinals = new int[numQueries][][];
+
+        IntStream.range(0, numQueries).parallel().forEach(q -> {
+            PerQueryRelDocs relInfo = relRcds.getRelInfo(qids.get(q));
+            judged[q] = relInfo != null;
+            if (relInfo == null)
+                relInfo = PerQueryRelDocs.NONE;
+            relInfo.resolveOffsets();
+            int[] relOffsets = relInfo.relOffsets;
+
+            entryDepths[q] = new int[relOffsets.length];
+            Arrays.fill(entryDepths[q], Integer.MAX_VALUE);
+            relRanks[q] = new int[systems.size()][];
+            relOrdinals[q] = new int[systems.size()][];
+
+            int[] ranks = new int[relOffsets.length];
+            int[] ordinals = new int[relOffsets.length];
+            for (int s = 0; s < systems.size(); s++) {
+                RankedLists lists = systems.get(s).getRankedLists();
+                int listIndex = relOffsets.length==0? -1 : lists.indexOf(qids.get(q));
+                int start = listIndex < 0? 0 : lists.start(listIndex);
+                int end = listIndex < 0? 0 : lists.end(listIndex);
+                int n = 0;
+                for (int i = start; i < end && n < relOffsets.length; i++) {
+                    int rel = Arrays.binarySearch(relOffsets, lists.docs[i]);
+                    if (rel < 0)
+                        continue;
+                    int rank = i - start + 1;
+                    ranks[n] = rank;
+                    ordinals[n++] = rel;
+                    entryDepths[q][rel] = Math.min(entryDepths[q][rel], rank);
+                }
+                relRanks[q][s] = Arrays.copyOf(ranks, n);
+                relOrdinals[q][s] = Arrays.copyOf(ordinals, n);
+            }
+        });
+    }
+
+    /*
+    MAP of each system against the pool of every uniform depth up to maxDepth, i.e. [depth][system]
+    (row 0 is unused).
+     */
+    public double[][] sweep(int maxDepth) {
+        int numQueries = qids.size();
+        double[][] maps = new double[maxDepth + 1][systems.size()];
+
+        // #pooled rel docs of each query at each depth
+        int[][] poolSizes = new int[numQueries][];
+        for (int q = 0; q < numQueries; q++)
+            poolSizes[q] = poolSizes(q, maxDepth);
+
+        IntStream.range(0, systems.size()).parallel().forEach(s -> {
+            for (int q = 0; q < numQueries; q++) {
+                int[] ranks = relRanks[q][s];
+                int[] ordinals = relOrdinals[q][s];
+                int m = ranks.length;
+
+                // positions (in rank order) of the rel docs of the system, by the depth they enter the pool
+                long[] events = new long[m];
+                int numEvents = 0;
+                for (int j = 0; j < m; j++) {
+                    int entryDepth = entryDepths[q][ordinals[j]];
+                    if (entryDepth <= maxDepth)
+                        events[numEvents++] = (long)entryDepth << 32 | j;
+                }
+                Arrays.sort(events, 0, numEvents);
+
+                FenwickTree counts = new FenwickTree(m);
+                FenwickTree invRanks = new FenwickTree(m);
+                double sumPrec = 0;
+                int e = 0;
+                for (int d = 1; d <= maxDepth; d++) {
+                    for (; e < numEvents && (int)(events[e] >>> 32) == d; e++) {
+                        int j = (int)events[e];
+                        int numAbove = (int)counts.prefixSum(j) + 1;
+                        sumPrec += numAbove/(double)ranks[j] + (invRanks.prefixSum(m - 1) - invRanks.prefixSum(j));
+                        counts.add(j, 1);
+                        invRanks.add(j, 1/(double)ranks[j]);
+                    }
+                    int numRel = poolSizes[q][d];
+                    maps[d][s] += numRel==0? 0 : sumPrec/numRel;
+                }
+            }
+            for (int d = 1; d <= maxDepth; d++)
+                maps[d][s] /= numQueries;
+        });
+        return maps;
+    }
+
+    // #pooled rel docs of the q-th query at each uniform depth up to maxDepth
+    int[] poolSizes(int q, int maxDepth) {
+        int[] poolSizes = new int[maxDepth + 1];
+        for (int entryDepth : entryDepths[q]) {
+            if (entryDepth <= maxDepth)
+                poolSizes[entryDepth]++;
+        }
+        for (int d = 1; d <= maxDepth; d++)
+            poolSizes[d] += poolSizes[d - 1];
+        return poolSizes;
+    }
+
+    // #pooled rel docs of each query (-1 if it isn't judged) when the depth of a system on a query is depths[system][query]
+    public int[] poolSizes(int[][] depths) {
+        int[] poolSizes = new int[qids.size()];
+        for (int q = 0; q < poolSizes.length; q++) {
+            boolean[] pooled = pooled(q, depths);
+            for (boolean p : pooled)
+                poolSizes[q] += p? 1 : 0;
+            if (!judged[q])
+                poolSizes[q] = -1;
+        }
+        return poolSizes;
+    }
+
+    boolean[] pooled(int q, int[][] depths) {
+        boolean[] pooled = new boolean[entryDepths[q].length];
+        for (int s = 0; s < systems.size(); s++) {
+            int[] ranks = relRanks[q][s];
+            for (int j = 0; j < ranks.length && ranks[j] <= depths[s][q]; j++)
+                pooled[relOrdinals[q][s][j]] = true;
+        }
+        return pooled;
+    }
+
+    // MAP of each system against the pool of the given per-query depths ([system][query]) of the systems
+    public double[] evaluate(int[][] depths) {
+        double[] maps = new double[systems.size()];
+        for (int q = 0; q < qids.size(); q++) {
+            boolean[] pooled = pooled(q, depths);
+            int numRel = 0;
+            for (boolean p : pooled)
+                numRel += p? 1 : 0;
+            if (numRel == 0)
+                continue;
+
+            for (int s = 0; s < systems.size(); s++) {
+                int[] ranks = relRanks[q][s];
+                MetricAccumulator acc = new MetricAccumulator(numRel);
+                for (int j = 0; j < ranks.length; j++) {
+                    if (pooled[relOrdinals[q][s][j]])
+                        acc.addRel(ranks[j], ranks[j]);
+                }
+                maps[s] += acc.get(Metric.AP);
+            }
+        }
+        for (int s = 0; s < maps.length; s++)
+            maps[s] /= qids.size();
+        return maps;
+    }
+
+    static class FenwickTree {
+        double[] tree;
+
+        FenwickTree(int n) { tree = new double[n + 1]; }
+
+        void add(int i, double value) {
+            for (i++; i < tree.length; i += i & -i)
+                tree[i] += value;
+        }
+
+        // sum of the values at positions 0..i
+        double prefixSum(int i) {
+            double sum = 0;
+            for (i++; i > 0; i -= i & -i)
+                sum += tree[i];
+            return sum;
+        }
+    }
+}
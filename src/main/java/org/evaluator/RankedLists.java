@@ -0,0 +1,125 @@
+package org.evaluator;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.util.BytesRef;
+import org.experiments.Settings;
+
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+/*
+The ranked lists (index doc offsets and scores) of a set of queries, laid out column-wise with
+the list of the q-th query at [starts[q], starts[q+1]) of docs and scores, i.e. three arrays in
+place of a TopDocs (and a ScoreDoc per retrieved doc) per query. Immutable once built, hence
+shared as is by every IRSystem made from the same run (e.g. the variants of a system that the
+depth pooling re-evaluates with different depths) and safe to read from multiple threads.
+ */
+public class RankedLists {
+    public static final RankedLists EMPTY = new RankedLists(Collections.emptyMap());
+
+    Map<String, Integer> queryIndex;    // qid -> q
+    int[] starts;
+    int[] docs;
+    float[] scores;
+    long[] totalHits;
+
+    public RankedLists(Map<String, TopDocs> topDocsMap) {
+        int numQueries = topDocsMap.size();
+        int numRows = 0;
+        for (TopDocs topDocs : topDocsMap.values())
+            numRows += topDocs.scoreDocs.length;
+
+        Map<String, Integer> queryIndex = new HashMap<>();
+        starts = new int[numQueries + 1];
+        docs = new int[numRows];
+        scores = new float[numRows];
+        totalHits = new long[numQueries];
+        int q = 0;
+        for (Map.Entry<String, TopDocs> e : topDocsMap.entrySet()) {
+            ScoreDoc[] scoreDocs = e.getValue().scoreDocs;
+            int start = starts[q];
+            for (int i = 0; i < scoreDocs.length; i++) {
+                docs[start + i] = scoreDocs[i].doc;
+                scores[start + i] = scoreDocs[i].score;
+            }
+            queryIndex.put(e.getKey(), q);
+            totalHits[q] = e.getValue().totalHits.value;
+            starts[++q] = start + scoreDocs.length;
+        }
+        this.queryIndex = Collections.unmodifiableMap(queryIndex);
+    }
+
+    /*
+    The lists of a run, with the doc names resolved to index offsets once per distinct doc (rather
+    than once per row). As with AllRetrievedResults.castToTopDocs, docs that don't resolve to an
+    offset are dropped, and the total hits of a query are its number of rows in the run.
+     */
+    public RankedLists(AllRetrievedResults run) {
+        this(run, Settings::getDocOffsetFromId_Mem);
+    }
+
+    // with the doc names resolved by docOffsets (-1 for a doc that isn't in the index)
+    RankedLists(AllRetrievedResults run, ToIntFunction<String> docOffsets) {
+        int numQueries = run.allRetMap.size();
+        RunColumns cols = run.cols;
+        int[] ordOffsets = new int[cols==null? 0 : cols.numDocNames()];
+        Arrays.fill(ordOffsets, Integer.MIN_VALUE);  // not resolved yet
+        BytesRef name = new BytesRef();
+
+        Map<String, Integer> queryIndex = new HashMap<>();
+        starts = new int[numQueries + 1];
+        docs = new int[cols==null? 0 : cols.size];
+        scores = new float[docs.length];
+        totalHits = new long[numQueries];
+        int q = 0, n = 0;
+        for (RetrievedResults rr : run.allRetMap.values()) {
+            for (int i = rr.start; i < rr.start + rr.length; i++) {
+                int ord = cols.docs[i];
+                if (ordOffsets[ord] == Integer.MIN_VALUE)
+                    ordOffsets[ord] = docOffsets.applyAsInt(cols.docNameBytes(ord, name).utf8ToString());
+                if (ordOffsets[ord] >= 0) {
+                    docs[n] = ordOffsets[ord];
+                    scores[n++] = cols.scores[i];
+                }
+            }
+            queryIndex.put(rr.qid, q);
+            totalHits[q] = rr.length;
+            starts[++q] = n;
+        }
+        if (n < docs.length) {
+            docs = Arrays.copyOf(docs, n);
+            scores = Arrays.copyOf(scores, n);
+        }
+        this.queryIndex = Collections.unmodifiableMap(queryIndex);
+    }
+
+    // -1 if there's no list for the query
+    public int indexOf(String qid) {
+        Integer q = queryIndex.get(qid);
+        return q==null? -1 : q;
+    }
+
+    public Set<String> queries() { return queryIndex.keySet(); }
+
+    public int numQueries() { return totalHits.length; }
+
+    // the list of the q-th query is [start(q), end(q))
+    public int start(int q) { return starts[q]; }
+    public int end(int q) { return starts[q + 1]; }
+
+    public int doc(int i) { return docs[i]; }
+    public float score(int i) { return scores[i]; }
+
+    // A new TopDocs (of new ScoreDocs) of the list of the query; null if there's none
+    public TopDocs getTopDocs(String qid) {
+        int q = indexOf(qid);
+        if (q < 0)
+            return null;
+        ScoreDoc[] scoreDocs = new ScoreDoc[starts[q + 1] - starts[q]];
+        for (int i = 0; i < scoreDocs.length; i++)
+            scoreDocs[i] = new ScoreDoc(docs[starts[q] + i], scores[starts[q] + i]);
+        return new TopDocs(new TotalHits(totalHits[q], TotalHits.Relation.EQUAL_TO), scoreDocs);
+    }
+}
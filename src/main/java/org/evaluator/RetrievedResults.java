@@ -1,153 +1,211 @@
 package org.evaluator;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.experiments.Settings;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
+/*
+A thin view of the rows [start, start+length) of a RunColumns, i.e. of the ranked list of one
+query. Lists that are built up by addTuple own their columns (and always append at the end).
+ */
 public class RetrievedResults implements Comparable<RetrievedResults> {
     String qid;
-    List<ResultTuple> rtuples;
+    RunColumns cols;
+    int start;
+    int length;
+    List<ResultTuple> rtuples;  // materialized only on getTuples()
     int numRelRet;
     float avgP;
     PerQueryRelDocs relInfo;
+    MetricValues metricValues;
 
     public RetrievedResults(String qid) {
-        this.qid = qid;
-        this.rtuples = new ArrayList<>(100);
-        avgP = -1;
-        numRelRet = -1;
+        this(qid, new RunColumns(100), 0, 0);
     }
 
     public RetrievedResults(String qid, TopDocs topDocs) {
-        this.qid = qid;
-        this.rtuples = new ArrayList<>(100);
+        this(qid, new RunColumns(topDocs.scoreDocs.length), 0, 0);
         int rank = 1;
         for (ScoreDoc sd: topDocs.scoreDocs) {
             addTuple(Settings.getDocIdFromOffset_Mem(sd.doc), rank++, sd.score);
         }
+    }
+
+    RetrievedResults(String qid, RunColumns cols, int start, int length) {
+        this.qid = qid;
+        this.cols = cols;
+        this.start = start;
+        this.length = length;
         avgP = -1;
         numRelRet = -1;
     }
 
     public String getQid() { return qid; }
 
-    public int getNumRet() { return rtuples.size(); }
+    public int getNumRet() { return length; }
+
+    public List<ResultTuple> getTuples() {
+        if (rtuples == null) {
+            List<ResultTuple> tuples = new ArrayList<>(length);
+            for (int i = start; i < start + length; i++) {
+                ResultTuple tuple = new ResultTuple(cols.docName(i), cols.ranks[i], cols.scores[i]);
+                tuple.rel = cols.rels[i];
+                tuples.add(tuple);
+            }
+            rtuples = tuples;
+        }
+        return rtuples;
+    }
+
+    // name of the i-th (0-based) retrieved doc
+    public String getDocName(int i) { return cols.docName(start + i); }
+
+    /*
+    Zero-copy access to the scores: the top min(k, getNumRet()) scores of this list are
+    getScores()[getScoresOffset() + i] for i < numScores(k). The array is shared, hence
+    not to be modified.
+     */
+    public float[] getScores() { return cols.scores; }
+
+    public int getScoresOffset() { return start; }
 
-    public List<ResultTuple> getTuples() { return this.rtuples; }
+    public int numScores(int k) { return Math.min(k, length); }
 
     public double[] getRSVs(int k) {
-        return ArrayUtils
-                .toPrimitive(rtuples
-                .stream()
-                .map(ResultTuple::getScore)
-                .collect(Collectors.toList())
-                .subList(0, Math.min(k, rtuples.size()))
-                .toArray(new Double[0]), 0.0);
+        double[] rsvs = new double[Math.min(k, length)];
+        for (int i = 0; i < rsvs.length; i++)
+            rsvs[i] = cols.scores[start + i];
+        return rsvs;
     }
 
     public void addTuple(String docName, int rank, double score) {
-        rtuples.add(new ResultTuple(docName, rank, score));
+        if (start + length != cols.size)
+            throw new IllegalStateException("Can't add to a view of the ranked list of " + qid);
+        cols.add(docName, rank, score);
+        length++;
+        rtuples = null;
+        metricValues = null;
     }
 
     public String toString() {
         StringBuffer buff = new StringBuffer();
-        for (ResultTuple rt : rtuples) {
+        for (int i = start; i < start + length; i++) {
             buff.append(qid).append("\t").
-                    append(rt.docName).append("\t").
-                    append(rt.rank).append("\t").
-                    append(rt.rel).append("\n");
+                    append(cols.docName(i)).append("\t").
+                    append(cols.ranks[i]).append("\t").
+                    append(cols.rels[i]).append("\n");
         }
         return buff.toString();
     }
 
-    void fillRelInfo(PerQueryRelDocs relInfo) {
-        String qid = relInfo.qid;
+    /*
+    0-based positions in this list of the given docs (-1 for those not retrieved); the docs are
+    looked up in the dictionary of the run instead of decoding each retrieved doc name.
+     */
+    public int[] positionsOf(String[] docNames) {
+        Map<Integer, Integer> ordinals = new HashMap<>();
+        for (int k = 0; k < docNames.length; k++) {
+            int ordinal = cols.findDocOrdinal(docNames[k]);
+            if (ordinal >= 0)
+                ordinals.put(ordinal, k);
+        }
+        int[] positions = new int[docNames.length];
+        Arrays.fill(positions, -1);
+        for (int i = start; i < start + length && !ordinals.isEmpty(); i++) {
+            Integer k = ordinals.remove(cols.docs[i]);
+            if (k != null)
+                positions[k] = i - start;
+        }
+        return positions;
+    }
 
-        for (ResultTuple rt : rtuples) {
-            Integer relIntObj = relInfo.relMap.get(rt.docName);
-            rt.rel = relIntObj == null? 0 : relIntObj.intValue();
+    void fillRelInfo(PerQueryRelDocs relInfo) {
+        // map the (few) rel docs to the ordinals of this run, instead of decoding each retrieved doc name
+        Map<Integer, Integer> relOrdinals = new HashMap<>();
+        for (Map.Entry<String, Integer> e : relInfo.relMap.entrySet()) {
+            int ordinal = cols.findDocOrdinal(e.getKey());
+            if (ordinal >= 0)
+                relOrdinals.put(ordinal, e.getValue());
+        }
+        for (int i = start; i < start + length; i++) {
+            Integer relIntObj = relOrdinals.get(cols.docs[i]);
+            cols.rels[i] = relIntObj == null? 0 : RunColumns.toRel(relIntObj);
         }
         this.relInfo = relInfo;
+        this.rtuples = null;
+        this.metricValues = null;
     }
 
     float computeAP() {
         if (avgP > -1)
             return avgP;
 
-        float prec = 0;
-        int numRel = relInfo.relMap.size();
-        int numRelSeen = 0;
-        for (ResultTuple tuple : this.rtuples) {
-            if (tuple.rel < 1)
-                continue;
-            numRelSeen++;
-            prec += numRelSeen/(float)(tuple.rank);
+        MetricAccumulator acc = new MetricAccumulator(relInfo.relMap.size());
+        for (int i = start; i < start + length; i++) {
+            if (cols.rels[i] >= 1)
+                acc.addRel(i - start + 1, cols.ranks[i]);
         }
-        numRelRet = numRelSeen;
-        prec = numRel==0? 0 : prec/(float)numRel;
-        this.avgP = prec;
+        numRelRet = acc.numRelSeen;
+        this.avgP = acc.get(Metric.AP);
 
-        return prec;
+        return avgP;
     }
 
     float precAtTop(int k) {
         int numRelSeen = 0;
         int numSeen = 0;
-        for (ResultTuple tuple : this.rtuples) {
+        for (int i = start; i < start + length; i++) {
             if (k>0 && numSeen >= k)
                 break;
-            if (tuple.rel >= 1)
+            if (cols.rels[i] >= 1)
                 numRelSeen++;
             numSeen++;
         }
         return numRelSeen/(float)k;
     }
 
-    float computeRecall() {
-        if (numRelRet > -1)
-            return numRelRet;
-        int numRelSeen = 0;
-        for (ResultTuple tuple : this.rtuples) {
-            if (tuple.rel < 1)
-                continue;
-            numRelSeen++;
+    /*
+    The fused evaluation kernel: values of every Metric on each prefix (of length cutoffs[i],
+    ascending) of this list, computed in a single scan; returned as [Metric.ordinal()][i].
+    The metrics are those of MetricAccumulator on a list truncated at the cutoff. Relevance is read
+    off the rels column (filled by fillRelInfo).
+     */
+    float[][] evaluateAtCutoffs(int[] cutoffs) {
+        float[][] values = new float[Metric.values().length][cutoffs.length];
+        MetricAccumulator acc = new MetricAccumulator(relInfo==null? 0 : relInfo.relMap.size());
+        int numSeen = 0;
+        int c = 0;
+
+        for (int i = start; i < start + length; i++) {
+            while (c < cutoffs.length && numSeen >= cutoffs[c])
+                acc.getAll(values, c++);
+            if (c == cutoffs.length)
+                break;
+
+            numSeen++;
+            if (cols.rels[i] >= 1)
+                acc.addRel(numSeen, cols.ranks[i]);
         }
-        numRelRet = numRelSeen;
-        return numRelSeen/(float)relInfo.relMap.size();
+        while (c < cutoffs.length)
+            acc.getAll(values, c++);
+        return values;
     }
-    
-    float computeNdcg() {
-        float dcg = 0;
-        float idcg = calculateIdcg(relInfo.relMap.size());
-        if (idcg == 0) {
-            return 0;
-        }
-        
-        for (int i = 0; i < this.rtuples.size(); i++) {
-            ResultTuple predictedItem = this.rtuples.get(i);
-            if (!relInfo.relMap.containsKey(predictedItem.docName))
-                continue;
-
-            // the relevance in the DCG part is either 1 (the item is contained in real data) 
-            // or 0 (item is not contained in the real data)
-            int itemRelevance = 1;
-            if (!relInfo.relMap.containsKey(predictedItem.docName))
-                itemRelevance = 0;
-
-            // compute NDCG
-            int rank = i + 1;
-            dcg += (Math.pow(2, itemRelevance) - 1.0) * (Math.log(2) / Math.log(rank + 1));
-        }
 
-    return dcg / idcg;
+
+    // All the metrics (and their MetricCutOff variants) from one scan; cached until the list changes
+    MetricValues evaluate() {
+        if (metricValues == null)
+            metricValues = new MetricValues(evaluateAtCutoffs(MetricValues.CUTOFFS));
+        return metricValues;
     }
-    
-    float calculateIdcg(int n) {
+
+    static float calculateIdcg(int n) {
         float idcg = 0;
         // if can get relevance for every item should replace the relevance score at this point, else
         // every item in the ideal case has relevance of 1
@@ -0,0 +1,120 @@
+package org.evaluator;
+
+import org.apache.lucene.util.ByteBlockPool;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+import java.util.Arrays;
+
+/*
+Struct-of-arrays storage of the rows (retrieved docs) of a run: an interned doc ordinal, rank,
+score and relevance value per row, in parallel primitive arrays. The rows of a query occupy a
+contiguous range [start, start+length), which a RetrievedResults is a view of.
+Doc names are interned into a BytesRefHash, i.e. each distinct doc name of the run is held
+only once, as UTF-8 bytes in pooled blocks instead of as a String object. The columns of a
+binary run instead use the (read-only) dictionary stored in its file.
+ */
+class RunColumns {
+    BytesRefHash docNames;  // doc name <-> ordinal (lookups by name are not thread-safe)
+    BinaryRun binaryRun;    // if not null, the dictionary (in place of docNames)
+    int[] docs;
+    int[] ranks;
+    float[] scores;
+    byte[] rels;
+    int size;
+
+    RunColumns(int capacity) {
+        this(new BytesRefHash(), capacity);
+    }
+
+    // With the dictionary presized for about numDocs distinct doc names (saves the rehashes of a large run)
+    RunColumns(int capacity, int numDocs) {
+        this(new BytesRefHash(new ByteBlockPool(new ByteBlockPool.DirectAllocator()),
+                hashCapacity(numDocs), new BytesRefHash.DirectBytesStartArray(hashCapacity(numDocs))), capacity);
+    }
+
+    static int hashCapacity(int numDocs) {
+        return Math.max(16, Integer.highestOneBit(Math.max(numDocs, 1) - 1) << 1);
+    }
+
+    // The columns of a binary run, copied out of its mapping
+    RunColumns(BinaryRun binaryRun) {
+        this(null, binaryRun.numRows());
+        this.binaryRun = binaryRun;
+        binaryRun.readColumns(docs, ranks, scores);
+        size = binaryRun.numRows();
+    }
+
+    private RunColumns(BytesRefHash docNames, int capacity) {
+        this.docNames = docNames;
+        capacity = Math.max(capacity, 16);
+        docs = new int[capacity];
+        ranks = new int[capacity];
+        scores = new float[capacity];
+        rels = new byte[capacity];
+    }
+
+    int docOrdinal(String docName) {
+        return docOrdinal(new BytesRef(docName==null? "" : docName));
+    }
+
+    int docOrdinal(BytesRef docName) {
+        if (binaryRun != null) {
+            int ordinal = binaryRun.findDoc(docName);
+            if (ordinal < 0)
+                throw new IllegalStateException("Can't add a doc to the dictionary of a binary run");
+            return ordinal;
+        }
+        int ordinal = docNames.add(docName);
+        return ordinal < 0? -ordinal - 1 : ordinal;
+    }
+
+    // -1 if the doc doesn't appear in the run
+    int findDocOrdinal(String docName) {
+        return binaryRun != null? binaryRun.findDoc(new BytesRef(docName)) : docNames.find(new BytesRef(docName));
+    }
+
+    int numDocNames() { return binaryRun != null? binaryRun.numDocs() : docNames.size(); }
+
+    BytesRef docNameBytes(int ordinal, BytesRef name) {
+        return binaryRun != null? binaryRun.docName(ordinal, name) : docNames.get(ordinal, name);
+    }
+
+    void add(String docName, int rank, double score) {
+        add(docOrdinal(docName), rank, (float)score);
+    }
+
+    void add(int docOrdinal, int rank, float score) {
+        if (size == docs.length) {
+            int capacity = docs.length << 1;
+            docs = Arrays.copyOf(docs, capacity);
+            ranks = Arrays.copyOf(ranks, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            rels = Arrays.copyOf(rels, capacity);
+        }
+        docs[size] = docOrdinal;
+        ranks[size] = rank;
+        scores[size] = score;
+        size++;
+    }
+
+    String docName(int row) { return docNameBytes(docs[row], new BytesRef()).utf8ToString(); }
+
+    static byte toRel(int rel) {
+        return (byte)Math.min(rel, Byte.MAX_VALUE);
+    }
+
+    // A copy of the rows in the given order (sharing the doc name dictionary)
+    RunColumns permute(int[] order) {
+        RunColumns permuted = new RunColumns(docNames, order.length);
+        permuted.binaryRun = binaryRun;
+        for (int i = 0; i < order.length; i++) {
+            permuted.docs[i] = docs[order[i]];
+            permuted.ranks[i] = ranks[order[i]];
+            permuted.scores[i] = scores[order[i]];
+            permuted.rels[i] = rels[order[i]];
+        }
+        permuted.size = order.length;
+        return permuted;
+    }
+}
@@ -0,0 +1,331 @@
+package org.evaluator;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+Byte-level parser of TREC run files (qid Q0 docid rank score runname), i.e. no per-line String,
+regex or token array. A plain file is memory-mapped and split into chunks at qid boundaries
+(at line boundaries if a query spans a whole chunk), which are parsed in parallel into
+RunColumns, and then merged (only the distinct doc names of each chunk are re-interned).
+gzip and zstd (zstd-jni) compressed runs are detected by their magic bytes and decompressed in memory.
+ */
+class TRECRunParser {
+    static final int MIN_CHUNK_SIZE = 1 << 22;
+    static final int MAX_SEGMENT_SIZE = 1 << 30;  // a single mapping is limited to 2GB
+
+    // The rows of a run in file order; rowQueries[i] is the index (in qids) of the query of row i
+    static class ParsedRun {
+        RunColumns rows;
+        int[] rowQueries;
+        List<String> qids = new ArrayList<>();
+        String runName;  // of the first line
+        int numMalformed;
+
+        ParsedRun(int capacity) {
+            rows = new RunColumns(capacity, capacity);
+            rowQueries = new int[Math.max(capacity, 16)];
+        }
+    }
+
+    static ParsedRun parse(File file) throws IOException {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        boolean compressed = false;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            in.mark(4);
+            byte[] magic = new byte[4];
+            int n = IOUtils.read(in, magic);
+            in.reset();
+            InputStream decompressed = decompressor(in, magic, n);
+            if (decompressed != null) {
+                compressed = true;
+                split(ByteBuffer.wrap(IOUtils.toByteArray(decompressed)), chunks);
+            }
+        }
+        if (!compressed) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long start = 0;
+                while (start < size) {
+                    ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(size - start, MAX_SEGMENT_SIZE));
+                    int end = segment.limit();
+                    if (start + end < size) {  // end the segment at a line boundary
+                        while (end > 0 && segment.get(end - 1) != '\n')
+                            end--;
+                        if (end == 0)
+                            throw new IOException("Line too long in " + file);
+                        segment.limit(end);
+                    }
+                    split(segment, chunks);
+                    start += end;
+                }
+            }
+        }
+
+        List<ParsedRun> parsed = chunks.parallelStream()
+                .map(TRECRunParser::parseChunk)
+                .collect(Collectors.toList());
+        ParsedRun run = merge(parsed);
+        if (run.numMalformed > 0)
+            System.err.println(String.format("Skipped %d malformed lines of %s", run.numMalformed, file));
+        return run;
+    }
+
+    static InputStream decompressor(InputStream in, byte[] magic, int n) throws IOException {
+        if (n >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+            return new GZIPInputStream(in, 1 << 16);
+        if (n >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 &&
+                (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+            return new ZstdInputStream(in);
+        }
+        return null;
+    }
+
+    // Splits a buffer (ending at a line boundary) into about equal chunks that start at qid boundaries
+    static void split(ByteBuffer buf, List<ByteBuffer> chunks) {
+        int size = buf.limit();
+        int numChunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_SIZE));
+        int start = 0;
+        for (int c = 1; c <= numChunks && start < size; c++) {
+            int end = c == numChunks? size : qidBoundary(buf, Math.max(start, (int)((long)size * c / numChunks)));
+            if (end > start) {
+                ByteBuffer chunk = buf.duplicate();
+                chunk.position(start);
+                chunk.limit(end);
+                chunks.add(chunk.slice());
+            }
+            start = end;
+        }
+    }
+
+    // The start of the first line at or after pos whose qid differs from that of the line before it
+    static int qidBoundary(ByteBuffer buf, int pos) {
+        int size = buf.limit();
+        while (pos > 0 && pos < size && buf.get(pos - 1) != '\n')
+            pos++;
+        int firstLine = pos;
+        int prevLine = pos;
+        while (prevLine > 0 && (prevLine == pos || buf.get(prevLine - 1) != '\n'))
+            prevLine--;
+
+        while (pos < size) {
+            if (!sameFirstToken(buf, prevLine, pos))
+                return pos;
+            prevLine = pos;
+            while (pos < size && buf.get(pos++) != '\n');
+            if (pos - firstLine > MIN_CHUNK_SIZE)  // a huge query; a line boundary will do
+                return pos;
+        }
+        return size;
+    }
+
+    static boolean sameFirstToken(ByteBuffer buf, int a, int b) {
+        int size = buf.limit();
+        while (a < size && isSpace(buf.get(a))) a++;
+        while (b < size && isSpace(buf.get(b))) b++;
+        while (a < size && b < size) {
+            byte x = buf.get(a++), y = buf.get(b++);
+            boolean endX = isSpace(x) || x == '\n', endY = isSpace(y) || y == '\n';
+            if (endX || endY)
+                return endX && endY;
+            if (x != y)
+                return false;
+        }
+        return false;
+    }
+
+    static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0b;
+    }
+
+    static ParsedRun parseChunk(ByteBuffer buf) {
+        int size = buf.limit();
+        ParsedRun run = new ParsedRun(size / 40);  // ~ the length of a line
+        Map<String, Integer> queryIndex = new HashMap<>();
+        RunColumns rows = run.rows;
+        int[] fieldStart = new int[6];
+        int[] fieldEnd = new int[6];
+        byte[] prevQid = new byte[0];
+        int q = -1;
+        BytesRef docName = new BytesRef(64);
+        int pos = 0;
+
+        while (pos < size) {
+            int numFields = 0;
+            int i = pos;
+            byte b = 0;
+            while (numFields < (run.runName == null? 6 : 5)) {
+                while (i < size && isSpace(b = buf.get(i))) i++;
+                if (i == size || b == '\n')
+                    break;
+                fieldStart[numFields] = i;
+                while (i < size && !isSpace(b = buf.get(i)) && b != '\n') i++;
+                fieldEnd[numFields++] = i;
+            }
+            while (i < size && buf.get(i) != '\n') i++;  // the run name
+            pos = i + 1;
+            if (numFields == 6)
+                run.runName = toString(buf, fieldStart[5], fieldEnd[5]);
+
+            if (numFields < 5) {
+                if (numFields > 0)
+                    run.numMalformed++;
+                continue;
+            }
+
+            int qidLength = fieldEnd[0] - fieldStart[0];
+            if (!equals(buf, fieldStart[0], qidLength, prevQid)) {
+                prevQid = new byte[qidLength];
+                for (int k = 0; k < qidLength; k++)
+                    prevQid[k] = buf.get(fieldStart[0] + k);
+                String qid = new String(prevQid, UTF_8);
+                Integer index = queryIndex.get(qid);
+                if (index == null) {
+                    index = run.qids.size();
+                    queryIndex.put(qid, index);
+                    run.qids.add(qid);
+                }
+                q = index;
+            }
+
+            int docLength = fieldEnd[2] - fieldStart[2];
+            if (docName.bytes.length < docLength)
+                docName.bytes = new byte[docLength << 1];
+            for (int k = 0; k < docLength; k++)
+                docName.bytes[k] = buf.get(fieldStart[2] + k);
+            docName.length = docLength;
+
+            if (rows.size == run.rowQueries.length)
+                run.rowQueries = Arrays.copyOf(run.rowQueries, run.rowQueries.length << 1);
+            run.rowQueries[rows.size] = q;
+            rows.add(rows.docOrdinal(docName),
+                    parseInt(buf, fieldStart[3], fieldEnd[3]),
+                    (float)parseDouble(buf, fieldStart[4], fieldEnd[4]));
+        }
+        return run;
+    }
+
+    static boolean equals(ByteBuffer buf, int start, int length, byte[] bytes) {
+        if (length != bytes.length)
+            return false;
+        for (int k = 0; k < length; k++) {
+            if (buf.get(start + k) != bytes[k])
+                return false;
+        }
+        return true;
+    }
+
+    static String toString(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int k = 0; k < bytes.length; k++)
+            bytes[k] = buf.get(start + k);
+        return new String(bytes, UTF_8);
+    }
+
+    static int parseInt(ByteBuffer buf, int start, int end) {
+        boolean negative = buf.get(start) == '-';
+        int i = negative? start + 1 : start;
+        if (i == end || end - i > 9)
+            return Integer.parseInt(toString(buf, start, end));
+        int value = 0;
+        for (; i < end; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9)
+                return Integer.parseInt(toString(buf, start, end));
+            value = value*10 + digit;
+        }
+        return negative? -value : value;
+    }
+
+    static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10;
+    }
+
+    /*
+    Plain decimals ([-]digits[.digits]) with a mantissa below 2^53 are exact doubles divided by
+    an exact power of ten, i.e. a correctly rounded result, the same as Double.parseDouble;
+    anything else (exponents, long mantissas, NaN etc.) goes through Double.parseDouble.
+     */
+    static double parseDouble(ByteBuffer buf, int start, int end) {
+        boolean negative = buf.get(start) == '-';
+        int i = negative? start + 1 : start;
+        long mantissa = 0;
+        int numDigits = 0;
+        int fracDigits = -1;
+        for (; i < end; i++) {
+            byte b = buf.get(i);
+            if (b == '.' && fracDigits < 0) {
+                fracDigits = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || ++numDigits > 17)
+                return Double.parseDouble(toString(buf, start, end));
+            mantissa = mantissa*10 + digit;
+            if (fracDigits >= 0)
+                fracDigits++;
+        }
+        if (numDigits == 0 || mantissa > (1L << 53) || fracDigits >= POW10.length)
+            return Double.parseDouble(toString(buf, start, end));
+        double value = fracDigits > 0? mantissa / POW10[fracDigits] : mantissa;
+        return negative? -value : value;
+    }
+
+    // Concatenates the chunks (in order), re-interning only the distinct doc names of each
+    static ParsedRun merge(List<ParsedRun> parsed) {
+        if (parsed.size() == 1)
+            return parsed.get(0);
+
+        int numRows = 0;
+        for (ParsedRun chunk : parsed)
+            numRows += chunk.rows.size;
+        ParsedRun run = new ParsedRun(numRows);
+        Map<String, Integer> queryIndex = new HashMap<>();
+        BytesRef docName = new BytesRef();
+
+        for (ParsedRun chunk : parsed) {
+            int[] queries = new int[chunk.qids.size()];
+            for (int k = 0; k < queries.length; k++) {
+                String qid = chunk.qids.get(k);
+                Integer index = queryIndex.get(qid);
+                if (index == null) {
+                    index = run.qids.size();
+                    queryIndex.put(qid, index);
+                    run.qids.add(qid);
+                }
+                queries[k] = index;
+            }
+            int[] docs = new int[chunk.rows.docNames.size()];
+            for (int k = 0; k < docs.length; k++)
+                docs[k] = run.rows.docOrdinal(chunk.rows.docNames.get(k, docName));
+
+            int base = run.rows.size;
+            for (int k = 0; k < chunk.rows.size; k++) {
+                run.rows.docs[base + k] = docs[chunk.rows.docs[k]];
+                run.rowQueries[base + k] = queries[chunk.rowQueries[k]];
+            }
+            System.arraycopy(chunk.rows.ranks, 0, run.rows.ranks, base, chunk.rows.size);
+            System.arraycopy(chunk.rows.scores, 0, run.rows.scores, base, chunk.rows.size);
+            run.rows.size += chunk.rows.size;
+            run.numMalformed += chunk.numMalformed;
+            if (run.runName == null)
+                run.runName = chunk.runName;
+        }
+        return run;
+    }
+}
@@ -11,6 +11,7 @@ import org.trec.TRECQuery;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 public class CrossIRModelComparator {
 
@@ -53,17 +54,18 @@ public class CrossIRModelComparator {
         String key;
         Metric[] metrics = { Metric.AP, Metric.Recall, Metric.nDCG} ;
 
-        for (m_i=0; m_i< metrics.length; m_i++) {
-            for (Similarity sim : sims) {
-                System.out.println("Evaluating with model " + sim.toString());
-                Evaluator evaluator = evaluatorMap.get(sim.toString());
+        List<String> qids = queries.stream().map(q -> q.id).collect(Collectors.toList());
+        for (Similarity sim : sims) {
+            System.out.println("Evaluating with model " + sim.toString());
+            Evaluator evaluator = evaluatorMap.get(sim.toString());
 
+            // all the metrics of a query from one scan of its ranked list
+            double[][] valuesByQuery = evaluator.compute(qids, metrics);
+            for (m_i=0; m_i< metrics.length; m_i++) {
                 double[] evaluatedMetricValues = new double[queries.size()];
-                i = 0;
-                for (i=0; i < queries.size(); i++) {
-                    TRECQuery query = queries.get(i);
-                    evaluatedMetricValues[i++] = evaluator.compute(query.id, metrics[m_i]);
-                }
+                for (i=0; i < queries.size(); i++)
+                    evaluatedMetricValues[i] = valuesByQuery[i][m_i];
+
                 key = sim.toString() + ":" + metrics[m_i].name();
                 metricValues.put(key, evaluatedMetricValues);
             }
@@ -0,0 +1,253 @@
+package org.experiments;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+
+/*
+Index-wide bidirectional dictionary between Lucene doc offsets and external (collection) ids.
+
+offset -> id: the ids of all documents are laid out back to back in a single byte blob,
+preceded by an int[maxDoc+1] array of start positions, so that resolving an offset is two int
+reads and a short byte copy instead of a stored-field decompression.
+id -> offset: an open-addressing hash table (linear probing, load factor <= 0.5) over the
+murmur3 hash of the id bytes whose slots store offset+1; a probe compares bytes against the
+blob, so that a lookup is O(1) instead of a TermQuery search. Deleted documents are left out of
+the table, and for duplicate ids the smallest offset wins (same as the top hit of a TermQuery).
+
+The dictionary is built once, from SortedDocValues on the id field if the index has them (a
+sequential scan), or else from the stored fields. If a directory is given, it is saved there as
+a sidecar file (named after and stamped with the identity of the index commit, see IndexIdentity)
+which is memory-mapped the next time around. A reader that isn't open on a commit of a directory
+has no identity, and its dictionary isn't saved.
+
+Layout (big endian): int MAGIC, int VERSION, long commitGeneration, byte[16] segmentsId, int maxDoc,
+    int[maxDoc+1] starts (relative to the blob), byte[] blob, padding to a multiple of 4,
+    int capacity, int[capacity] slots
+ */
+public class DocIdResolver {
+    static final int MAGIC = 0x51504944; // "QPID"
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 4 + 4 + IndexIdentity.SIZE + 4;
+
+    int maxDoc;
+    ByteBuffer buff;   // heap or memory-mapped
+    int startsPos;     // position of the starts array in buff
+    int blobPos;       // position of the id blob in buff
+    int tablePos;      // position of the hash table slots in buff
+    int mask;          // capacity - 1 (capacity is a power of 2)
+
+    DocIdResolver(ByteBuffer buff) {
+        this.buff = buff;
+        maxDoc = buff.getInt(HEADER_SIZE - 4);
+        startsPos = HEADER_SIZE;
+        blobPos = startsPos + 4*(maxDoc + 1);
+        int capacityPos = align(blobPos + buff.getInt(startsPos + 4*maxDoc));
+        mask = buff.getInt(capacityPos) - 1;
+        tablePos = capacityPos + 4;
+    }
+
+    static int align(int pos) { return (pos + 3) & ~3; }
+
+    static int tableCapacity(int maxDoc) {
+        int capacity = 2;
+        while (capacity < 2L*maxDoc)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    static int hash(byte[] bytes, int offset, int length) {
+        return StringHelper.murmurhash3_x86_32(bytes, offset, length, 0x9747b28c);
+    }
+
+    public static DocIdResolver open(IndexReader reader, String idField, File sidecarDir) throws IOException {
+        IndexIdentity index = IndexIdentity.of(reader);
+        File sidecar = sidecarDir==null || index==null? null :
+                new File(sidecarDir, String.format("docids-%s-%s.bin", idField, index));
+
+        if (sidecar != null && sidecar.exists()) {
+            ByteBuffer mapped = map(sidecar);
+            if (mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION &&
+                    IndexIdentity.read((ByteBuffer)mapped.duplicate().position(8)).equals(index) &&
+                    mapped.getInt(HEADER_SIZE - 4) == reader.maxDoc())
+                return new DocIdResolver(mapped);
+        }
+
+        boolean hasDocValues = hasSortedDocValues(reader, idField);
+        System.out.println(String.format("Building the doc-offset <-> id dictionary from %s...",
+                hasDocValues? "doc values" : "stored fields"));
+        ByteBuffer built = build(reader, idField, index, hasDocValues);
+
+        if (sidecar != null) {
+            save(built, sidecar);
+            return new DocIdResolver(map(sidecar));
+        }
+        return new DocIdResolver(built);
+    }
+
+    static boolean hasSortedDocValues(IndexReader reader, String idField) {
+        for (LeafReaderContext leaf: reader.leaves()) {
+            FieldInfo fieldInfo = leaf.reader().getFieldInfos().fieldInfo(idField);
+            if (fieldInfo == null || fieldInfo.getDocValuesType() != DocValuesType.SORTED)
+                return false;
+        }
+        return !reader.leaves().isEmpty();
+    }
+
+    // index is null if the reader has no identity (then stamped as generation -1 with a zero id)
+    static ByteBuffer build(IndexReader reader, String idField, IndexIdentity index, boolean fromDocValues) throws IOException {
+        int maxDoc = reader.maxDoc();
+        int[] starts = new int[maxDoc + 1];
+        ByteArrayOutputStream blob = new ByteArrayOutputStream(maxDoc * 10);
+        Set<String> fieldsToLoad = Collections.singleton(idField);
+
+        for (LeafReaderContext leaf: reader.leaves()) {
+            LeafReader leafReader = leaf.reader();
+            SortedDocValues idValues = fromDocValues? leafReader.getSortedDocValues(idField) : null;
+
+            for (int docId = 0; docId < leafReader.maxDoc(); docId++) {
+                int offset = leaf.docBase + docId;
+                starts[offset] = blob.size();
+
+                if (idValues != null) {
+                    if (idValues.docID() < docId)
+                        idValues.advance(docId);
+                    if (idValues.docID() == docId) {
+                        BytesRef id = idValues.binaryValue();
+                        blob.write(id.bytes, id.offset, id.length);
+                    }
+                }
+                else {
+                    String id = leafReader.document(docId, fieldsToLoad).get(idField);
+                    if (id != null)
+                        blob.write(id.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        starts[maxDoc] = blob.size();
+        byte[] blobBytes = blob.toByteArray();
+        int[] slots = buildTable(reader, starts, blobBytes);
+
+        int blobPos = HEADER_SIZE + 4*(maxDoc + 1);
+        int capacityPos = align(blobPos + blobBytes.length);
+        ByteBuffer buff = ByteBuffer.allocate(capacityPos + 4 + 4*slots.length);
+        buff.putInt(MAGIC).putInt(VERSION);
+        (index != null? index : new IndexIdentity(-1, new byte[StringHelper.ID_LENGTH])).write(buff);
+        buff.putInt(maxDoc);
+        buff.asIntBuffer().put(starts);
+        buff.position(blobPos);
+        buff.put(blobBytes);
+        buff.position(capacityPos);
+        buff.putInt(slots.length);
+        buff.asIntBuffer().put(slots);
+        buff.rewind();
+        return buff;
+    }
+
+    static int[] buildTable(IndexReader reader, int[] starts, byte[] blob) {
+        int maxDoc = starts.length - 1;
+        int[] slots = new int[tableCapacity(maxDoc)];
+        int mask = slots.length - 1;
+        Bits liveDocs = MultiBits.getLiveDocs(reader);
+
+        for (int offset = 0; offset < maxDoc; offset++) {
+            int length = starts[offset + 1] - starts[offset];
+            if (length == 0 || (liveDocs != null && !liveDocs.get(offset)))
+                continue;
+
+            int slot = hash(blob, starts[offset], length) & mask;
+            while (slots[slot] != 0) {
+                int other = slots[slot] - 1;
+                if (equals(blob, starts[other], starts[other + 1] - starts[other], blob, starts[offset], length))
+                    break; // duplicate id: keep the smaller offset
+                slot = (slot + 1) & mask;
+            }
+            if (slots[slot] == 0)
+                slots[slot] = offset + 1;
+        }
+        return slots;
+    }
+
+    static boolean equals(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        if (aLength != bLength)
+            return false;
+        for (int i = 0; i < aLength; i++) {
+            if (a[aOffset + i] != b[bOffset + i])
+                return false;
+        }
+        return true;
+    }
+
+    static void save(ByteBuffer buff, File sidecar) throws IOException {
+        File dir = sidecar.getParentFile();
+        if (dir != null && !dir.exists())
+            dir.mkdirs();
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer src = buff.duplicate();
+            src.rewind();
+            while (src.hasRemaining())
+                channel.write(src);
+        }
+        Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public int maxDoc() { return maxDoc; }
+
+    // Only absolute reads on the shared buffer, hence safe to call from multiple threads
+    public String getDocId(int docOffset) {
+        if (docOffset < 0 || docOffset >= maxDoc)
+            return null;
+        int start = buff.getInt(startsPos + 4*docOffset);
+        int end = buff.getInt(startsPos + 4*(docOffset + 1));
+        byte[] id = new byte[end - start];
+        for (int i = 0; i < id.length; i++)
+            id[i] = buff.get(blobPos + start + i);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    // Returns -1 if there's no (live) document with this id
+    public int getDocOffset(String docId) {
+        byte[] id = docId.getBytes(StandardCharsets.UTF_8);
+        int slot = hash(id, 0, id.length) & mask;
+        int entry;
+
+        while ((entry = buff.getInt(tablePos + 4*slot)) != 0) {
+            int offset = entry - 1;
+            if (matches(offset, id))
+                return offset;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    boolean matches(int docOffset, byte[] id) {
+        int start = buff.getInt(startsPos + 4*docOffset);
+        int end = buff.getInt(startsPos + 4*(docOffset + 1));
+        if (end - start != id.length)
+            return false;
+        for (int i = 0; i < id.length; i++) {
+            if (buff.get(blobPos + start + i) != id[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package org.experiments;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.util.StringHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+The identity of the commit of an index that a reader is open on, for what is persisted against
+the doc offsets of an index (RunStore, DocIdResolver): the commit generation along with the id
+of the SegmentInfos of the commit, which Lucene draws at random for every commit, so that two
+different indexes at the same generation (1 or 2 after a one-shot build) never match.
+ */
+final class IndexIdentity {
+    static final int SIZE = 8 + StringHelper.ID_LENGTH;
+
+    long generation;
+    byte[] segmentsId;
+
+    IndexIdentity(long generation, byte[] segmentsId) {
+        this.generation = generation;
+        this.segmentsId = segmentsId;
+    }
+
+    // null if the reader isn't open on a commit of a directory (and hence has no identity)
+    static IndexIdentity of(IndexReader reader) throws IOException {
+        if (!(reader instanceof DirectoryReader))
+            return null;
+        IndexCommit commit = ((DirectoryReader)reader).getIndexCommit();
+        byte[] id = SegmentInfos.readCommit(commit.getDirectory(), commit.getSegmentsFileName()).getId();
+        return id==null? null : new IndexIdentity(commit.getGeneration(), id);
+    }
+
+    static IndexIdentity read(ByteBuffer buff) {
+        long generation = buff.getLong();
+        byte[] id = new byte[StringHelper.ID_LENGTH];
+        buff.get(id);
+        return new IndexIdentity(generation, id);
+    }
+
+    void write(ByteBuffer buff) {
+        buff.putLong(generation).put(segmentsId);
+    }
+
+    byte[] toBytes() {
+        ByteBuffer buff = ByteBuffer.allocate(SIZE);
+        write(buff);
+        return buff.array();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof IndexIdentity))
+            return false;
+        IndexIdentity that = (IndexIdentity)o;
+        return generation == that.generation && Arrays.equals(segmentsId, that.segmentsId);
+    }
+
+    @Override
+    public int hashCode() { return Long.hashCode(generation)*31 + Arrays.hashCode(segmentsId); }
+
+    // usable in a file name
+    @Override
+    public String toString() { return generation + "-" + StringHelper.idToString(segmentsId); }
+}
@@ -1,6 +1,5 @@
 package org.experiments;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.math3.stat.correlation.KendallsCorrelation;
 import org.apache.lucene.index.Term;
@@ -8,9 +7,9 @@ import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.LMDirichletSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
 import org.correlation.KendalCorrelation;
+import org.evaluator.AllRetrievedResults;
 import org.evaluator.Evaluator;
 import org.evaluator.Metric;
-import org.evaluator.ResultTuple;
 import org.evaluator.RetrievedResults;
 import org.qpp.NQCSpecificityCalibrated;
 import org.qpp.QPPMethod;
@@ -19,13 +18,13 @@ import org.trec.TRECQuery;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import org.correlation.PearsonCorrelation;
 
 public class NQCCalibrationWorkflow {
     Similarity sim = new LMDirichletSimilarity(1000);
-    protected Map<String, TopDocs> topDocsMap = new HashMap<>();
+    protected Map<String, TopDocs> topDocsMap = new ConcurrentHashMap<>();
     protected QPPEvaluator qppEvaluator;
     protected Evaluator evaluator;
     protected QPPMethod qppMethod;
@@ -61,55 +60,39 @@ public class NQCCalibrationWorkflow {
     }
 
     public Map<String, TopDocs> loadResFile(File resFile) {
-        Map<String, TopDocs> topDocsMap = new HashMap<>();
-        try {
-            List<String> lines = FileUtils.readLines(resFile, UTF_8);
-
-            String prev_qid = null, qid = null;
-            RetrievedResults rr = null;
+        // a run file that has been loaded before (on the same index) is read back from the binary store
+        RunStore runStore = QPPEvaluator.openRunStore(Settings.getProp(), Settings.getSearcher().getIndexReader());
+        if (runStore != null) {
+            Map<String, TopDocs> stored = runStore.load(RunStore.tag(resFile), null, RunStore.FULL_LIST);
+            if (!stored.isEmpty())
+                return stored;
+        }
 
-            for (String line: lines) {
-                String[] tokens = line.split("\\s+");
-                qid = tokens[0];
+        Map<String, TopDocs> topDocsMap = parseResFile(resFile);
+        if (runStore != null)
+            runStore.save(RunStore.tag(resFile), null, topDocsMap, RunStore.FULL_LIST);
+        return topDocsMap;
+    }
 
-                if (prev_qid!=null && !prev_qid.equals(qid)) {
-                    topDocsMap.put(prev_qid, convert(rr));
-                    rr = new RetrievedResults(qid);
-                }
-                else if (prev_qid == null) {
-                    rr = new RetrievedResults(qid);
-                }
+    Map<String, TopDocs> parseResFile(File resFile) {
+        Map<String, TopDocs> topDocsMap = new HashMap<>();
+        AllRetrievedResults run = new AllRetrievedResults(resFile.getPath());
 
-                int offset = Settings.getDocOffsetFromId(tokens[2]);
-                int rank = Integer.parseInt(tokens[3]);
-                double score = Float.parseFloat(tokens[4]);
+        for (String qid: run.queries()) {
+            RetrievedResults rr = run.getRetrievedResultsForQueryId(qid);
+            int nret = rr.getNumRet();
+            float[] scores = rr.getScores();
+            int start = rr.getScoresOffset();
 
-                rr.addTuple(String.valueOf(offset), rank, score);
-                prev_qid = qid;
+            ScoreDoc[] sd = new ScoreDoc[nret];
+            for (int i = 0; i < nret; i++) {
+                sd[i] = new ScoreDoc(Settings.getDocOffsetFromId(rr.getDocName(i)), scores[start + i]);
             }
-            if (qid!=null)
-                topDocsMap.put(qid, convert(rr));
-        }
-        catch (Exception ex) {
-            ex.printStackTrace();
+            topDocsMap.put(qid, new TopDocs(new TotalHits(nret, TotalHits.Relation.EQUAL_TO), sd));
         }
         return topDocsMap;
     }
 
-    private TopDocs convert(RetrievedResults rr) {
-        int nret = rr.getNumRet();
-        ScoreDoc[] sd = new ScoreDoc[nret];
-
-        int i = 0;
-        for (ResultTuple resultTuple: rr.getTuples()) {
-            sd[i++] = new ScoreDoc(
-                Integer.parseInt(resultTuple.getDocName()),
-                (float)(resultTuple.getScore())
-            );
-        }
-        return new TopDocs(new TotalHits(nret, TotalHits.Relation.EQUAL_TO), sd);
-    }
-
     public double computeCorrelation(List<TRECQuery> queries, QPPMethod qppMethod, int qppTopK) {
         int numQueries = queries.size();
         double[] qppEstimates = new double[numQueries]; // stores qpp estimates for the list of input queries
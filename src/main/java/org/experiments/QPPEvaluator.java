@@ -3,6 +3,12 @@ package org.experiments;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
@@ -19,6 +25,7 @@ import org.correlation.KendalCorrelation;
 import org.correlation.MinMaxNormalizer;
 import org.correlation.PearsonCorrelation;
 import org.correlation.QPPCorrelationMetric;
+import org.evaluator.AllRelRcds;
 import org.evaluator.Evaluator;
 import org.evaluator.Metric;
 import org.evaluator.RetrievedResults;
@@ -53,6 +60,22 @@ public class QPPEvaluator {
     Map<String, TopDocs>      topDocsMap;
     QPPCorrelationMetric      correlationMetric;
     TRECQueryParser           trecQueryParser;
+    int                       numThreads;
+    boolean                   saveRuns;
+    RetrievalCache            retrievalCache;
+    RunStore                  runStore;
+
+    static final Logger logger = Logger.getLogger(QPPEvaluator.class.getName());  // the cache stats at FINE
+
+    // Run files are written off the critical path, one at a time and in submission order
+    static final ExecutorService runWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "run-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(QPPEvaluator::awaitRunFiles));
+    }
 
     public QPPEvaluator(Properties prop, QPPCorrelationMetric correlationMetric, IndexSearcher searcher, int numWanted) {
         this.prop = prop;
@@ -60,8 +83,42 @@ public class QPPEvaluator {
         this.reader = searcher.getIndexReader();
         this.numWanted = numWanted;
         this.correlationMetric = correlationMetric;
+        this.numThreads = Integer.parseInt(prop.getProperty("retrieve.num_threads", "1"));
+        this.saveRuns = Boolean.parseBoolean(prop.getProperty("retrieve.save_runs", "true"));
+        this.retrievalCache = new RetrievalCache(Long.parseLong(prop.getProperty("retrieve.cache.maxhits", "2000000")));
+        this.runStore = openRunStore(prop, reader);
+    }
+
+    // A persistent store of retrieved lists shared across JVM runs (enabled with runstore.dir)
+    static RunStore openRunStore(Properties prop, IndexReader reader) {
+        String runStoreDir = prop.getProperty("runstore.dir");
+        if (runStoreDir == null)
+            return null;
+        try {
+            return new RunStore(new File(runStoreDir), reader);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    // The qrels are parsed once per process and then shared by every evaluator
+    AllRelRcds getQrels(String qrelsFile) {
+        return AllRelRcds.get(qrelsFile);
     }
 
+    // Blocks until every run file submitted so far has been written out
+    public static void awaitRunFiles() {
+        try {
+            runWriter.submit(() -> {}).get();
+        }
+        catch (Exception ex) { ex.printStackTrace(); }
+    }
+
+    public void setNumThreads(int numThreads) { this.numThreads = numThreads; }
+    public int getNumThreads() { return numThreads; }
+
     private static List<String> buildStopwordList() {
         List<String> stopwords = new ArrayList<>();
         String line;
@@ -127,6 +184,140 @@ public class QPPEvaluator {
         return searcher.search(query.getLuceneQueryObj(), numWanted);
     }
 
+    // A private searcher over the shared reader bound to its own similarity, so that
+    // concurrent workers never race on IndexSearcher.setSimilarity
+    IndexSearcher searcherView(Similarity sim) {
+        IndexSearcher view = new IndexSearcher(reader);
+        view.setSimilarity(sim);
+        return view;
+    }
+
+    /*
+    Batch execute a list of queries. Lists already in the retrieval cache (possibly at a
+    larger cutoff) are served from there, next from the on-disk run store if there's one
+    (newly searched lists are added to the store). The rest are searched; with retrieve.num_threads > 1
+    they are split into contiguous slices, each searched by a worker with its own
+    similarity-bound view of the index. The returned map is concurrent; callers needing a
+    deterministic order should iterate over the query list and not over the map.
+     */
+    public Map<String, TopDocs> retrieveAll(List<TRECQuery> queries, Similarity sim, int numWanted) throws IOException {
+        Map<String, TopDocs> topDocsMap = new ConcurrentHashMap<>();
+        // the shared searcher stays bound to the last used model (RLS et al. search with it)
+        searcher.setSimilarity(sim);
+
+        List<TRECQuery> toSearch = new ArrayList<>();
+        for (TRECQuery query : queries) {
+            TopDocs cached = retrievalCache.get(query, sim, numWanted);
+            if (cached != null)
+                topDocsMap.put(query.id, cached);
+            else
+                toSearch.add(query);
+        }
+        if (runStore != null && !toSearch.isEmpty())
+            toSearch = loadStored(toSearch, sim, numWanted, topDocsMap);
+
+        int nthreads = Math.min(numThreads, toSearch.size());
+        if (nthreads <= 1) {
+            for (TRECQuery query : toSearch)
+                topDocsMap.put(query.id, search(searcher, query, sim, numWanted));
+        }
+        else {
+            searchInParallel(toSearch, sim, numWanted, nthreads, topDocsMap);
+        }
+
+        if (runStore != null && !toSearch.isEmpty())
+            runStore.save(RunStore.tag(sim), toSearch, topDocsMap, numWanted);
+        return topDocsMap;
+    }
+
+    // Fills in the lists found in the run store and returns the queries still to be searched
+    List<TRECQuery> loadStored(List<TRECQuery> queries, Similarity sim, int numWanted,
+                               Map<String, TopDocs> topDocsMap) {
+        Map<String, TopDocs> stored = runStore.load(RunStore.tag(sim), queries, numWanted);
+        if (stored.isEmpty())
+            return queries;
+
+        List<TRECQuery> remaining = new ArrayList<>();
+        for (TRECQuery query : queries) {
+            TopDocs topDocs = stored.get(query.id);
+            if (topDocs == null) {
+                remaining.add(query);
+                continue;
+            }
+            topDocsMap.put(query.id, topDocs);
+            retrievalCache.put(query, sim, numWanted, topDocs);
+        }
+        return remaining;
+    }
+
+    void searchInParallel(List<TRECQuery> toSearch, Similarity sim, int numWanted, int nthreads,
+                          Map<String, TopDocs> topDocsMap) throws IOException {
+
+        ExecutorService workers = Executors.newFixedThreadPool(nthreads);
+        List<Future<?>> pending = new ArrayList<>(nthreads);
+        int sliceSize = (toSearch.size() + nthreads - 1)/nthreads;
+        try {
+            for (int start = 0; start < toSearch.size(); start += sliceSize) {
+                List<TRECQuery> slice = toSearch.subList(start, Math.min(start + sliceSize, toSearch.size()));
+                pending.add(workers.submit(() -> {
+                    IndexSearcher view = searcherView(sim);
+                    for (TRECQuery query : slice)
+                        topDocsMap.put(query.id, search(view, query, sim, numWanted));
+                    return null;
+                }));
+            }
+            for (Future<?> f : pending)
+                f.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+    TopDocs search(IndexSearcher searcher, TRECQuery query, Similarity sim, int numWanted) throws IOException {
+        TopDocs topDocs = searcher.search(query.getLuceneQueryObj(), numWanted);
+        retrievalCache.put(query, sim, numWanted, topDocs);
+        return topDocs;
+    }
+
+    public RetrievalCache getRetrievalCache() { return retrievalCache; }
+
+    // Writes the run in the order of the query list (and not the order of the map)
+    void saveRun(String resFile, List<TRECQuery> queries,
+                 Map<String, TopDocs> topDocsMap, String runName) throws Exception {
+        try (FileWriter fw = new FileWriter(resFile);
+             BufferedWriter bw = new BufferedWriter(fw)) {
+            for (TRECQuery query : queries) {
+                TopDocs topDocs = topDocsMap.get(query.id);
+                if (topDocs != null)
+                    saveRetrievedTuples(bw, query, topDocs, runName);
+            }
+        }
+    }
+
+    // Evaluation is done in memory; the TREC run file is only a (optional) side effect
+    // which is written in the background. Use awaitRunFiles() before reading it back.
+    void saveRunAsync(String resFile, List<TRECQuery> queries,
+                      Map<String, TopDocs> topDocsMap, String runName) {
+        if (!saveRuns)
+            return;
+        final List<TRECQuery> querySnapshot = new ArrayList<>(queries);
+        final Map<String, TopDocs> topDocsSnapshot = new HashMap<>(topDocsMap);
+        runWriter.submit(() -> {
+            try {
+                saveRun(resFile, querySnapshot, topDocsSnapshot, runName);
+            }
+            catch (Exception ex) { ex.printStackTrace(); }
+        });
+    }
+
     public static Similarity[] modelsToTest() {
         return new Similarity[]{
             new LMJelinekMercerSimilarity(0.6f),
@@ -148,119 +339,66 @@ public class QPPEvaluator {
         };
     }
 
+    // unlike QueryTermStats.avgIDF, a term that doesn't occur in the collection makes it +Inf
     double averageIDF(Query q) throws IOException {
         long N = reader.numDocs();
-        Set<Term> qterms = new HashSet<>();
-        //+++LUCENE_COMPATIBILITY: Sad there's no #ifdef like C!
-        // 8.x CODE
-        q.createWeight(searcher, ScoreMode.COMPLETE, 1).extractTerms(qterms);
-        // 5.x CODE
-        //q.createWeight(searcher, false).extractTerms(qterms);
-        //---LUCENE_COMPATIBILITY
-
+        QueryTermStats stats = QueryTermStats.get(searcher, q);
         float aggregated_idf = 0;
-        for (Term t: qterms) {
-            int n = reader.docFreq(t);
-            double idf = Math.log(N/(double)n);
+        for (int i = 0; i < stats.numTerms(); i++) {
+            double idf = Math.log(N/(double)stats.docFreq(i));
             aggregated_idf += idf;
         }
-        return aggregated_idf/(double)qterms.size();
+        return aggregated_idf/(double)stats.numTerms();
     }
 
     public Evaluator executeDummy(List<TRECQuery> queries, Similarity sim,
                                     int cutoff, String qrelsFile, String resFile,
                                     Map<String, TopDocs> topDocsMap) throws Exception {
 
-        int numQueries = queries.size();
-        double[] evaluatedMetricValues = new double[numQueries];
-
-        FileWriter fw = new FileWriter(resFile);
-        BufferedWriter bw = new BufferedWriter(fw);
-
-        for (TRECQuery query : queries) {
-            TopDocs topDocs = topDocsMap.get(query.id);
-            saveRetrievedTuples(bw, query, topDocs, sim.toString());
-        }
-        bw.flush();
-        bw.close();
-        fw.close();
-
-        Evaluator evaluator = new Evaluator(qrelsFile, resFile); // load ret and rel
-        return evaluator;
+        saveRunAsync(resFile, queries, topDocsMap, sim.toString());
+        return new Evaluator(getQrels(qrelsFile), topDocsMap); // load ret and rel
     }
 
     public Evaluator executeQueries(List<TRECQuery> queries, Similarity sim,
                                     int cutoff, String qrelsFile, String resFile,
                                     Map<String, TopDocs> topDocsMap,
                                     Map<String, Integer> maxDepths) throws Exception {
-        int numQueries = queries.size();
-        double[] evaluatedMetricValues = new double[numQueries];
-
-        FileWriter fw = new FileWriter(resFile);
-        BufferedWriter bw = new BufferedWriter(fw);
-
-        for (TRECQuery query : queries) {
-            TopDocs topDocs = retrieve(query, sim, cutoff);
-            if (topDocsMap != null)
-                topDocsMap.put(query.id, topDocs);
-            saveRetrievedTuples(bw, query, topDocs, sim.toString());
-        }
-        bw.flush();
-        bw.close();
-        fw.close();
-
-        Evaluator evaluator = new Evaluator(qrelsFile, resFile); // load ret and rel
-        return evaluator;
+        return executeQueries(queries, sim, cutoff, qrelsFile, resFile, topDocsMap);
     }
 
     public Evaluator executeQueries(List<TRECQuery> queries, Similarity sim,
                                     int cutoff, String qrelsFile, String resFile, 
                                     Map<String, TopDocs> topDocsMap) throws Exception {
 
-        int numQueries = queries.size();
-        double[] evaluatedMetricValues = new double[numQueries];
-
-        FileWriter fw = new FileWriter(resFile);
-        BufferedWriter bw = new BufferedWriter(fw);
-
-        for (TRECQuery query : queries) {
-            TopDocs topDocs = retrieve(query, sim, cutoff);
-            if (topDocsMap != null)
-                topDocsMap.put(query.id, topDocs);
-            saveRetrievedTuples(bw, query, topDocs, sim.toString());
-        }
-        bw.flush();
-        bw.close();
-        fw.close();
+        Map<String, TopDocs> retrieved = retrieveAll(queries, sim, cutoff);
+        if (topDocsMap != null)
+            topDocsMap.putAll(retrieved);
+        saveRunAsync(resFile, queries, retrieved, sim.toString());
 
-        Evaluator evaluator = new Evaluator(qrelsFile, resFile); // load ret and rel
-        return evaluator;
+        return new Evaluator(getQrels(qrelsFile), retrieved); // load ret and rel
     }
 
     double[] evaluate(List<TRECQuery> queries, Similarity sim, Metric m, int cutoff) throws Exception {
-        topDocsMap = new HashMap<>();
-
-        int numQueries = queries.size();
-        double[] evaluatedMetricValues = new double[numQueries];
+        return evaluate(queries, sim, new Metric[] {m}, cutoff)[0];
+    }
 
-        FileWriter fw = new FileWriter(Settings.RES_FILE);
-        BufferedWriter bw = new BufferedWriter(fw);
+    // Returns [metric][query], i.e. the vector of per-query values of each metric, out of one
+    // retrieval and one scan of each ranked list
+    double[][] evaluate(List<TRECQuery> queries, Similarity sim, Metric[] metrics, int cutoff) throws Exception {
+        topDocsMap = retrieveAll(queries, sim, cutoff);
 
-        for (TRECQuery query : queries) {
-            TopDocs topDocs = retrieve(query, sim, cutoff);
-            topDocsMap.put(query.id, topDocs);
-            saveRetrievedTuples(bw, query, topDocs, sim.toString());
-        }
-        bw.flush();
-        bw.close();
-        fw.close();
+        saveRunAsync(Settings.RES_FILE, queries, topDocsMap, sim.toString());
 
         String qrelsFile = prop.getProperty("qrels.file");
-        Evaluator evaluator = new Evaluator(qrelsFile, Settings.RES_FILE); // load ret and rel
+        Evaluator evaluator = new Evaluator(getQrels(qrelsFile), topDocsMap); // load ret and rel
 
-        int i=0;
-        for (TRECQuery query : queries) {
-            evaluatedMetricValues[i++] = evaluator.compute(query.id, m);
+        List<String> qids = queries.stream().map(q -> q.id).collect(Collectors.toList());
+        double[][] valuesByQuery = evaluator.compute(qids, metrics);
+
+        double[][] evaluatedMetricValues = new double[metrics.length][queries.size()];
+        for (int i=0; i < valuesByQuery.length; i++) {
+            for (int j=0; j < metrics.length; j++)
+                evaluatedMetricValues[j][i] = valuesByQuery[i][j];
         }
         return evaluatedMetricValues;
     }
@@ -283,7 +421,8 @@ public class QPPEvaluator {
 
         int qppTopK = Settings.getQppTopK();
         String qrelsFile = Settings.getQrelsFile();
-        Evaluator evaluator = new Evaluator(qrelsFile, Settings.RES_FILE); // load ret and rel
+        // the ranked lists come from the topDocsMap passed in (and not from whatever run was written last)
+        Evaluator evaluator = new Evaluator(getQrels(qrelsFile), topDocsMap); // load ret and rel
 
         int i = 0;
         for (TRECQuery query : queries) {
@@ -392,9 +531,10 @@ public class QPPEvaluator {
         Map<Integer, double[]> preEvaluated = new HashMap<>();
         Map<String, TopDocs> topDocsMap[] = new Map[metricForEval.length];
 
+        double[][] allMetricValues = evaluate(queries, sim, metricForEval, cutoff); // all metrics in one go
         for (i=0; i< metricForEval.length; i++) { // pre-evaluate for each metric
             Metric m = metricForEval[i];
-            double[] evaluatedMetricValues = evaluate(queries, sim, m, cutoff);
+            double[] evaluatedMetricValues = allMetricValues[i];
             topDocsMap[i] = this.topDocsMap; // store this map
 
             preEvaluated.put(i, evaluatedMetricValues);
@@ -430,6 +570,7 @@ public class QPPEvaluator {
                         sim.toString(), metricForEval[i].name(), metricForEval[j].name(), correlationMetric.name(), inter_corr);
             }
         }
+        logger.fine(retrievalCache::toString);
     }
 
     private RegParameters fit(
@@ -465,9 +606,10 @@ public class QPPEvaluator {
         Map<String, double[]> preEvaluated = new HashMap<>();
         Map<String, TopDocs> topDocsMap[] = new Map[metricForEval.length];
 
+        double[][] allMetricValues = evaluate(trainQueries, sim, metricForEval, cutoff);
         for (i=0; i< metricForEval.length; i++) { // pre-evaluate for each metric
             Metric m = metricForEval[i];
-            double[] evaluatedMetricValues = evaluate(trainQueries, sim, m, cutoff);
+            double[] evaluatedMetricValues = allMetricValues[i];
             topDocsMap[i] = this.topDocsMap;
             preEvaluated.put(metricForEval[i].name(), evaluatedMetricValues);
             System.out.println(String.format("Average %s (IR-model: %s, Metric: %s): %.4f",
@@ -493,9 +635,10 @@ public class QPPEvaluator {
         double[] qppEstimates = null;
 
         preEvaluated.clear();
+        allMetricValues = evaluate(testQueries, sim, metricForEval, cutoff);
         for (i=0; i< metricForEval.length; i++) { // pre-evaluate for each metric on the test set now
             Metric m = metricForEval[i];
-            evaluatedMetricValues = evaluate(testQueries, sim, m, cutoff);
+            evaluatedMetricValues = allMetricValues[i];
             topDocsMap[i] = this.topDocsMap; // topdocs for each query for each metric
             preEvaluated.put(metricForEval[i].name(), evaluatedMetricValues);
             System.out.println(String.format("Average %s (IR-model: %s, Metric: %s): %.4f",
@@ -546,6 +689,7 @@ public class QPPEvaluator {
                         sim.toString(), metricForEval[i].name(), metricForEval[j].name(), correlationMetric.name(), inter_corr);
             }
         }
+        logger.fine(retrievalCache::toString);
     }
 
     /*
@@ -646,6 +790,7 @@ public class QPPEvaluator {
                         m.name(), sims[i].toString(), sims[j].toString(), correlationMetric.name(), inter_corr);
             }
         }
+        logger.fine(retrievalCache::toString);
     }
 
     /*
@@ -702,6 +847,7 @@ public class QPPEvaluator {
                         m.name(), sims[i].toString(), sims[j].toString(), correlationMetric.name(), inter_corr);
             }
         }
+        logger.fine(retrievalCache::toString);
     }
 
     public void evaluateQPPAllWithCutoffs(List<TRECQuery> queries) throws Exception {
@@ -717,21 +863,57 @@ public class QPPEvaluator {
         // with varying number of top-docs and metrics
         Metric[] metricForEval = Metric.values();
         Similarity[] sims = modelsToTest();
-        int i, j;
+        int i, j, k;
         final int numCutOffs = 10;
         final int cutOffStep = 10;
+        int[] cutoffs = new int[numCutOffs];
+        for (i=0; i<numCutOffs; i++)
+            cutoffs[i] = (i+1)*cutOffStep;
+
+        // [sim][metric][cutoff] -> QPP correlation
+        double[][][] rankcorrs = new double[sims.length][metricForEval.length][numCutOffs];
+
+        // Retrieve (and evaluate) once per model at the largest cutoff; the metric values at every cutoff
+        // come from one pass over each ranked list and the QPP estimates from prefixes of the same lists.
+        for (k=0; k<sims.length; k++) {
+            Similarity sim = sims[k];
+            Map<String, TopDocs> topDocsMap = retrieveAll(queries, sim, cutoffs[numCutOffs-1]);
+            saveRunAsync(Settings.RES_FILE, queries, topDocsMap, sim.toString());
+            Evaluator evaluator = new Evaluator(getQrels(Settings.getQrelsFile()), topDocsMap);
+
+            // [metric][cutoff][query]
+            double[][][] evaluatedMetricValues = new double[metricForEval.length][numCutOffs][queries.size()];
+            for (int qi=0; qi<queries.size(); qi++) {
+                double[][] values = evaluator.computeAllAtCutoffs(queries.get(qi).id, cutoffs); // one scan for all the metrics
+                for (j=0; j<metricForEval.length; j++) {
+                    for (i=0; i<numCutOffs; i++)
+                        evaluatedMetricValues[j][i][qi] = values[metricForEval[j].ordinal()][i];
+                }
+            }
+
+            // the estimates don't depend on the metric, hence once per cutoff
+            for (i=0; i<numCutOffs; i++) {
+                Map<String, TopDocs> prefixes = new HashMap<>();
+                for (Map.Entry<String, TopDocs> e: topDocsMap.entrySet())
+                    prefixes.put(e.getKey(), RetrievalCache.slice(e.getValue(), cutoffs[i]));
+
+                double[] estimates = getQPPEstimates(prefixes, qppMethod, queries, null);
+                for (j=0; j<metricForEval.length; j++)
+                    rankcorrs[k][j][i] = correlationMetric.correlation(evaluatedMetricValues[j][i], estimates);
+            }
+            this.topDocsMap = topDocsMap;
+        }
 
-        for (Metric m : metricForEval) {
+        for (j=0; j<metricForEval.length; j++) {
             for (i=0; i<numCutOffs; i++) {
-                int cutoff = (i+1)*cutOffStep;
-                for (Similarity sim : sims) {
-                    double[] evaluatedMetricValues = evaluate(queries, sim, m, cutoff);
-                    double rankcorr = evaluateQPPOnModel(this.topDocsMap, qppMethod, queries, evaluatedMetricValues, m);
-                    System.out.printf("Model: %s, Metric %s: QPP-corr (%s) = %.4f%n",
-                            sim.toString(), m.toString(), rankcorr);
+                for (k=0; k<sims.length; k++) {
+                    System.out.printf("Model: %s, Metric %s@%d: QPP-corr (%s) = %.4f%n",
+                            sims[k].toString(), metricForEval[j].toString(), cutoffs[i],
+                            correlationMetric.name(), rankcorrs[k][j][i]);
                 }
             }
         }
+        logger.fine(retrievalCache::toString);
     }
 
     public void evaluateQPPAtCutoff(QPPMethod qppMethod,
@@ -816,9 +998,8 @@ public class QPPEvaluator {
         ScoreDoc[] hits = topDocs.scoreDocs;
         for (int i = 0; i < hits.length; ++i) {
             int docId = hits[i].doc;
-            Document d = searcher.doc(docId);
             buff.append(query.id.trim()).append("\tQ0\t").
-                    append(d.get(Settings.getIdFieldName())).append("\t").
+                    append(Settings.getDocIdFromOffset(docId)).append("\t").
                     append((i+1)).append("\t").
                     append(hits[i].score).append("\t").
                     append(runName).append("\n");
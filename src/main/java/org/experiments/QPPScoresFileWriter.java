@@ -10,9 +10,9 @@ import org.qpp.*;
 import org.trec.TRECQuery;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class QPPScoresFileWriter {
     static public QPPMethod[] qppMethods(IndexSearcher searcher) {
@@ -48,10 +48,11 @@ public class QPPScoresFileWriter {
             final int nwanted = Settings.getNumWanted();
             final int qppTopK = Settings.getQppTopK();
 
-            Map<String, TopDocs> topDocsMap = new HashMap<>();
+            Map<String, TopDocs> topDocsMap = new ConcurrentHashMap<>();
            
             Evaluator evaluator = qppEvaluator.executeQueries(queries, sim, nwanted, qrelsFile, resFile, topDocsMap);
 
+            QPPEvaluator.awaitRunFiles(); // the run is written in the background to the same file
             FileWriter fw = new FileWriter(Settings.RES_FILE);
             BufferedWriter bw = new BufferedWriter(fw);
             StringBuilder buff = new StringBuilder();
@@ -2,6 +2,8 @@ package org.experiments;
 
 import org.qpp.RLSSpecificity;
 
+import java.util.Arrays;
+
 public class RLSWorkflow extends NQCCalibrationWorkflow {
     int num_fdbk;
     int num_sample;
@@ -23,6 +25,29 @@ public class RLSWorkflow extends NQCCalibrationWorkflow {
         qppMethod = new RLSSpecificity(Settings.getSearcher(), num_fdbk, num_sample, top_refs);
     }
 
+    /*
+    Evaluates every (num_fdbk, num_sample, top refs) of the grid on the queries parsed and the lists
+    retrieved once (by this workflow). The cells share the feedback term rankings and the reference
+    lists (see RLSSpecificity), so that the whole grid costs about as much as its largest cell.
+     */
+    void sweep(int[] num_fdbks, int[] num_samples) {
+        RLSSpecificity grid = new RLSSpecificity(Settings.getSearcher(), Arrays.stream(num_samples).max().getAsInt());
+        for (int num_fdbk: num_fdbks) {
+            for (int num_sample: num_samples) {
+                for (int l = (int)Math.floor(num_sample/2); l>0; l--) {
+                    System.out.println(String.format("RUN STARTS FOR num_fdbk = %d num_sample = %d, top refs = %d", num_fdbk, num_sample, l));
+                    this.num_fdbk = num_fdbk;
+                    this.num_sample = num_sample;
+                    this.top_refs = l;
+                    qppMethod = new RLSSpecificity(grid, num_fdbk, num_sample, l);
+
+                    System.out.println(String.format("Evaluating on %d queries", queries.size()));
+                    computeCorrelation(queries, qppMethod);
+                }
+            }
+        }
+    }
+
     public static void main(String[] args) {
         final String QUERY_FILE = "/home/suchana/NetBeansProjects/qpp-variation/data/topics.401-450.xml";
         final String RES_FILE = "/store/causalIR/drmm/NQC_trec/DRMM_NQC_noQV/trec8_drmm_noQV_100cut.res";
@@ -35,48 +60,19 @@ public class RLSWorkflow extends NQCCalibrationWorkflow {
 //        final int[] NUM_SAMPLES = {5};  // Number of reference lists, i.e. number of queries to form
 //        final int L = 5; // number of reference lists for both pos and neg (corresponding to the lowest p values)
         
-        switch(RES_FILE_INPUT) {
-            case "rerank":
-                for (int num_fdbk: NUM_FDBK_TOP_DOCS) {
-                    for (int num_sample: NUM_SAMPLES) {
-                        for (int l = (int)Math.floor(num_sample/2); l>0; l--) {
-    //                        int l = L;
-                            System.out.println(String.format("RUN STARTS FOR num_fdbk = %d num_sample = %d, top refs = %d", num_fdbk, num_sample, l));
-                            RLSWorkflow rlsWorkflow = null;
-                            try {
-                                rlsWorkflow = new RLSWorkflow(QUERY_FILE, RES_FILE, num_fdbk, num_sample, l);
-                            } catch (Exception ex) {
-                                ex.printStackTrace();
-                            }
-
-                            System.out.println(String.format("Evaluating on %d queries", rlsWorkflow.queries.size()));
-                            rlsWorkflow.computeCorrelation(rlsWorkflow.queries, rlsWorkflow.qppMethod);
-                        //}
-                        }
-                    }
-                } 
-                break;
-                
-            case "lm":
-                for (int num_fdbk: NUM_FDBK_TOP_DOCS) {
-                    for (int num_sample: NUM_SAMPLES) {
-                        for (int l = (int)Math.floor(num_sample/2); l>0; l--) {
-    //                        int l = L;
-                            System.out.println(String.format("RUN STARTS FOR num_fdbk = %d num_sample = %d, top refs = %d", num_fdbk, num_sample, l));
-                            RLSWorkflow rlsWorkflow = null;
-                            try {
-                                rlsWorkflow = new RLSWorkflow(QUERY_FILE, num_fdbk, num_sample, l);
-                            } catch (Exception ex) {
-                                ex.printStackTrace();
-                            }
-
-                            System.out.println(String.format("Evaluating on %d queries", rlsWorkflow.queries.size()));
-                            rlsWorkflow.computeCorrelation(rlsWorkflow.queries, rlsWorkflow.qppMethod);
-                            //}
-                        }
-                    }
-                } 
-                break;
-        }                  
+        RLSWorkflow rlsWorkflow = null;
+        try {
+            switch(RES_FILE_INPUT) {
+                case "rerank":
+                    rlsWorkflow = new RLSWorkflow(QUERY_FILE, RES_FILE, NUM_FDBK_TOP_DOCS[0], NUM_SAMPLES[0], 1);
+                    break;
+                case "lm":
+                    rlsWorkflow = new RLSWorkflow(QUERY_FILE, NUM_FDBK_TOP_DOCS[0], NUM_SAMPLES[0], 1);
+                    break;
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        rlsWorkflow.sweep(NUM_FDBK_TOP_DOCS, NUM_SAMPLES);
     }
 }
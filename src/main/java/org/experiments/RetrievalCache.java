@@ -0,0 +1,103 @@
+package org.experiments;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.trec.TRECQuery;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+A bounded LRU cache of ranked lists keyed by <query, similarity>. Each entry remembers the
+cutoff it was retrieved with, so that a list retrieved at a larger cutoff serves every
+request for a smaller one by slicing off its top (Lucene breaks score ties by doc id, hence
+the prefix of a deeper list is identical to a shallower retrieval).
+The bound is on the total number of ScoreDocs held across entries.
+ */
+public class RetrievalCache {
+
+    static class CachedList {
+        TopDocs topDocs;
+        int cutoff;
+
+        CachedList(TopDocs topDocs, int cutoff) {
+            this.topDocs = topDocs;
+            this.cutoff = cutoff;
+        }
+    }
+
+    long maxHits;       // max #ScoreDocs across all cached lists; 0 disables the cache
+    long numCachedHits;
+    long hits;
+    long misses;
+    Map<String, CachedList> lru;
+
+    public RetrievalCache(long maxHits) {
+        this.maxHits = maxHits;
+        lru = new LinkedHashMap<>(1024, 0.75f, true); // access order
+    }
+
+    // The query text is part of the key since the same qid is run with different fields (t/td/tdn)
+    static String key(TRECQuery query, Similarity sim) {
+        return query.id + "\t" + query.getLuceneQueryObj().toString() + "\t" + sim.toString();
+    }
+
+    public synchronized TopDocs get(TRECQuery query, Similarity sim, int cutoff) {
+        CachedList cached = maxHits > 0? lru.get(key(query, sim)) : null;
+        if (cached == null || cached.cutoff < cutoff) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return slice(cached.topDocs, cutoff);
+    }
+
+    public synchronized void put(TRECQuery query, Similarity sim, int cutoff, TopDocs topDocs) {
+        if (maxHits <= 0)
+            return;
+
+        String key = key(query, sim);
+        CachedList old = lru.get(key);
+        if (old != null) {
+            if (old.cutoff >= cutoff)
+                return; // already have a deeper list
+            numCachedHits -= old.topDocs.scoreDocs.length;
+        }
+        lru.put(key, new CachedList(topDocs, cutoff));
+        numCachedHits += topDocs.scoreDocs.length;
+
+        // evict the least recently used lists (but never the one just added)
+        Iterator<Map.Entry<String, CachedList>> iter = lru.entrySet().iterator();
+        while (numCachedHits > maxHits && lru.size() > 1 && iter.hasNext()) {
+            Map.Entry<String, CachedList> eldest = iter.next();
+            if (eldest.getKey().equals(key))
+                continue;
+            numCachedHits -= eldest.getValue().topDocs.scoreDocs.length;
+            iter.remove();
+        }
+    }
+
+    public static TopDocs slice(TopDocs topDocs, int cutoff) {
+        if (topDocs.scoreDocs.length <= cutoff)
+            return topDocs;
+        ScoreDoc[] top = Arrays.copyOf(topDocs.scoreDocs, cutoff);
+        return new TopDocs(topDocs.totalHits, top);
+    }
+
+    public synchronized void clear() {
+        lru.clear();
+        numCachedHits = 0;
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Retrieval cache: %d lists (%d hits held), #hits = %d, #misses = %d",
+                lru.size(), numCachedHits, hits, misses);
+    }
+}
@@ -0,0 +1,307 @@
+package org.experiments;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.similarities.Similarity;
+import org.trec.TRECQuery;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+A persistent binary store of ranked lists, i.e. the (qid, doc-offset, score) arrays of a run.
+There's one file per tag (the parameters of a similarity or the identity of an external run file),
+which is stamped with the identity of the index commit the doc offsets refer to (see
+IndexIdentity), so that a store built on another index, or on another version of it, is never
+used. A reader that isn't open on a commit of a directory has no identity, and can't have a store.
+
+The lists follow the header one after another until the end of the file. A save appends the
+lists that are new (or deeper) to the file, the latest list of a query superseding those before
+it, and the file is only rewritten (without the superseded lists) once they outnumber the live
+ones. An incomplete list at the end (of an interrupted append) is ignored, and cut off by the
+next append.
+The store of a tag is guarded by a lock on a sidecar file (the store file itself is replaced by
+a rewrite): a save holds it exclusively from reading the end of the file to having written its
+lists, so that concurrent processes neither cut off nor lose each other's lists, and a load
+holds it shared. Within a process the lockers are serialized on the class, as a JVM can't hold
+overlapping locks of the same file.
+
+File layout (big endian):
+    int MAGIC, int VERSION, long commitGeneration, byte[16] segmentsId, string tag
+    per list: string qid, int queryHash, int cutoff, int n, int[n] docs, float[n] scores
+where a string is an int byte-length followed by UTF-8 bytes.
+ */
+public class RunStore {
+    static final int MAGIC = 0x51505253; // "QPRS"
+    static final int VERSION = 2;
+    public static final int FULL_LIST = Integer.MAX_VALUE; // cutoff for lists loaded from run files
+
+    File dir;
+    IndexIdentity index;
+
+    static class StoredList {
+        String qid;
+        int queryHash;
+        int cutoff;
+        int[] docs;
+        float[] scores;
+
+        StoredList(String qid, int queryHash, int cutoff, int[] docs, float[] scores) {
+            this.qid = qid;
+            this.queryHash = queryHash;
+            this.cutoff = cutoff;
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        StoredList(String qid, int queryHash, int cutoff, TopDocs topDocs) {
+            this(qid, queryHash, cutoff, new int[topDocs.scoreDocs.length], new float[topDocs.scoreDocs.length]);
+            for (int i=0; i < docs.length; i++) {
+                docs[i] = topDocs.scoreDocs[i].doc;
+                scores[i] = topDocs.scoreDocs[i].score;
+            }
+        }
+
+        TopDocs toTopDocs(int k) {
+            int n = Math.min(k, docs.length);
+            ScoreDoc[] sd = new ScoreDoc[n];
+            for (int i=0; i < n; i++)
+                sd[i] = new ScoreDoc(docs[i], scores[i]);
+            return new TopDocs(new TotalHits(n, TotalHits.Relation.EQUAL_TO), sd);
+        }
+    }
+
+    // what a store file holds (of the current index), and where its last complete list ends
+    static class Contents {
+        Map<String, StoredList> lists = new LinkedHashMap<>();
+        int numRecords;     // including the superseded lists
+        long end;           // 0 if the file is missing, of another index or unreadable
+    }
+
+    public RunStore(File dir, IndexReader reader) throws IOException {
+        this.dir = dir;
+        index = IndexIdentity.of(reader);
+        if (index == null)
+            throw new IOException("A run store needs a reader on a commit of an index directory");
+        if (!dir.exists())
+            dir.mkdirs();
+    }
+
+    public static String tag(Similarity sim) { return "sim:" + sim.toString(); }
+
+    public static String tag(File runFile) {
+        return String.format("run:%s:%d:%d", runFile.getAbsolutePath(), runFile.length(), runFile.lastModified());
+    }
+
+    static int queryHash(TRECQuery query) {
+        return query.getLuceneQueryObj()==null? 0 : query.getLuceneQueryObj().toString().hashCode();
+    }
+
+    File storeFile(String tag) {
+        return new File(dir, String.format("run-%08x.bin", tag.hashCode()));
+    }
+
+    File lockFile(String tag) {
+        return new File(dir, String.format("run-%08x.lock", tag.hashCode()));
+    }
+
+    FileChannel openLockFile(String tag) throws IOException {
+        return FileChannel.open(lockFile(tag).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /*
+    Returns the stored lists (truncated to 'cutoff') for those queries that were stored with the
+    same query text and with at least as deep a cutoff. If 'queries' is null every stored list
+    is returned. Missing, stale or foreign stores return an empty map.
+     */
+    public Map<String, TopDocs> load(String tag, List<TRECQuery> queries, int cutoff) {
+        Map<String, TopDocs> topDocsMap = new HashMap<>();
+        Map<String, StoredList> stored;
+        synchronized (RunStore.class) {
+            try (FileChannel channel = openLockFile(tag)) {
+                FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    stored = read(tag).lists;
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+                return topDocsMap;
+            }
+        }
+        if (stored.isEmpty())
+            return topDocsMap;
+
+        if (queries == null) {
+            for (StoredList list: stored.values())
+                topDocsMap.put(list.qid, list.toTopDocs(cutoff));
+            return topDocsMap;
+        }
+        for (TRECQuery query: queries) {
+            StoredList list = stored.get(query.id);
+            if (list != null && list.queryHash == queryHash(query) && list.cutoff >= cutoff)
+                topDocsMap.put(query.id, list.toTopDocs(cutoff));
+        }
+        return topDocsMap;
+    }
+
+    // Adds the given lists to the store (a deeper list already stored for a query is retained)
+    public void save(String tag, List<TRECQuery> queries, Map<String, TopDocs> topDocsMap, int cutoff) {
+        synchronized (RunStore.class) {
+            try (FileChannel channel = openLockFile(tag)) {
+                FileLock lock = channel.lock();
+                try {
+                    save(tag, read(tag), queries, topDocsMap, cutoff);
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            catch (IOException ex) { ex.printStackTrace(); }
+        }
+    }
+
+    // with the store locked, and its contents read under the lock
+    void save(String tag, Contents contents, List<TRECQuery> queries, Map<String, TopDocs> topDocsMap,
+              int cutoff) throws IOException {
+        List<StoredList> added = new ArrayList<>();
+        if (queries == null) {
+            for (Map.Entry<String, TopDocs> e: topDocsMap.entrySet())
+                added.add(new StoredList(e.getKey(), 0, cutoff, e.getValue()));
+        }
+        else {
+            for (TRECQuery query: queries) {
+                TopDocs topDocs = topDocsMap.get(query.id);
+                if (topDocs == null)
+                    continue;
+                StoredList old = contents.lists.get(query.id);
+                int hash = queryHash(query);
+                if (old != null && old.queryHash == hash && old.cutoff >= cutoff)
+                    continue;
+                added.add(new StoredList(query.id, hash, cutoff, topDocs));
+            }
+        }
+        if (added.isEmpty())
+            return;
+
+        int numRecords = contents.numRecords + added.size();
+        for (StoredList list: added)
+            contents.lists.put(list.qid, list);
+        if (contents.end == 0 || numRecords > 2*contents.lists.size())
+            write(tag, contents.lists.values());
+        else
+            append(tag, contents.end, added);
+    }
+
+    Contents read(String tag) {
+        Contents contents = new Contents();
+        File file = storeFile(tag);
+        if (!file.exists())
+            return contents;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buff = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buff.getInt() != MAGIC || buff.getInt() != VERSION)
+                return contents;
+            if (!IndexIdentity.read(buff).equals(index) || !readString(buff).equals(tag))
+                return contents; // built on another index (or commit), or a hash collision
+            long end = buff.position();
+
+            try {
+                while (buff.hasRemaining()) {
+                    String qid = readString(buff);
+                    int queryHash = buff.getInt();
+                    int cutoff = buff.getInt();
+                    int n = buff.getInt();
+                    if (n < 0 || 8L*n > buff.remaining())
+                        break;
+                    int[] docs = new int[n];
+                    float[] scores = new float[n];
+                    buff.asIntBuffer().get(docs);
+                    buff.position(buff.position() + 4*n);
+                    buff.asFloatBuffer().get(scores);
+                    buff.position(buff.position() + 4*n);
+                    contents.lists.put(qid, new StoredList(qid, queryHash, cutoff, docs, scores));
+                    contents.numRecords++;
+                    end = buff.position();
+                }
+            }
+            catch (BufferUnderflowException | NegativeArraySizeException ex) { /* an incomplete last list */ }
+            contents.end = end;
+        }
+        catch (Exception ex) {
+            System.err.println(String.format("Ignoring unreadable run store %s (%s)", file, ex));
+            return new Contents();
+        }
+        return contents;
+    }
+
+    // rewrites the store with the given lists (with the store locked)
+    void write(String tag, Collection<StoredList> lists) throws IOException {
+        File file = storeFile(tag);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(index.toBytes());
+            writeString(out, tag);
+            for (StoredList list: lists)
+                writeList(out, list);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // appends the lists after the last complete one (with the store locked)
+    void append(String tag, long end, Collection<StoredList> lists) throws IOException {
+        try (FileChannel channel = FileChannel.open(storeFile(tag).toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+            channel.position(end);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1<<16));
+            for (StoredList list: lists)
+                writeList(out, list);
+            out.flush();
+        }
+    }
+
+    static void writeList(DataOutputStream out, StoredList list) throws IOException {
+        writeString(out, list.qid);
+        out.writeInt(list.queryHash);
+        out.writeInt(list.cutoff);
+        out.writeInt(list.docs.length);
+        for (int doc: list.docs)
+            out.writeInt(doc);
+        for (float score: list.scores)
+            out.writeFloat(score);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buff) {
+        int length = buff.getInt();
+        if (length < 0 || length > buff.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buff.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,10 +1,11 @@
 package org.experiments;
 
 import java.io.*;
-import java.nio.charset.Charset;
 import java.util.*;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
@@ -48,8 +49,8 @@ public class Settings {
     public static int maxDepth;
     public static boolean randomDepths;
     public static boolean tsvMode;
-    public static HashMap<String, Integer> docId2OffsetMap = new HashMap<>();
-    public static HashMap<Integer, String> offset2DocIdMap = new HashMap<>();
+    static volatile DocIdResolver docIdResolver;
+    static volatile boolean docIdResolverFailed;   // not retried; the lookups go to the index instead
 
     static public String getQueryFile() {
         return prop.getProperty("query.file");
@@ -67,27 +68,6 @@ public class Settings {
         return Boolean.parseBoolean(prop.getProperty("qpp.logtramsform", "true"));
     }
 
-    static void constructDocId2OffsetMap() {
-        try {
-            // we just need the mapping for the rel docs... just get all docs that are relevant for some query
-            // we don't even need to keep track of the queries
-            List<String> relRcdLines = FileUtils.readLines(new File(getQrelsFile()), Charset.defaultCharset());
-            for (String relRcdLine: relRcdLines) {
-                String[] tokens = relRcdLine.split("\\s+");
-                String docId = tokens[2];
-                int rel = Integer.parseInt(tokens[3]);
-                if (rel>0) {
-                    int offset = getDocOffsetFromId(docId);
-                    offset2DocIdMap.put(offset, docId);
-                    docId2OffsetMap.put(docId, offset);
-                    //System.out.print(String.format("Added (%d, %s) pair...\r", offset, docId));
-                }
-            }
-            System.out.println();
-        }
-        catch (Exception ex) { ex.printStackTrace(); }
-    }
-
     static public void init(String propFile) {
         init(propFile, false);
     }
@@ -108,9 +88,9 @@ public class Settings {
             numWanted = Integer.parseInt(prop.getProperty("retrieve.num_wanted", "100"));
 
             if (initMap) {
-                System.out.println("Loading the map of Doc-Id strings and Lucene integer offsets in memory...");
-                constructDocId2OffsetMap();
-                System.out.println("Loaded the map of Doc-Id strings and Lucene integer offsets in memory...");
+                System.out.println("Loading the dictionary of Doc-Id strings and Lucene integer offsets...");
+                if (getDocIdResolver() != null)
+                    System.out.println("Loaded the dictionary of Doc-Id strings and Lucene integer offsets...");
             }
 
             minDepth = Integer.parseInt(prop.getProperty("pool.mindepth", "20"));
@@ -172,7 +152,37 @@ public class Settings {
 
     public static Properties getProp() { return prop; }
 
+    /*
+    Sends the records of a logger to the console at the level of the given property (e.g.
+    rls.loglevel=FINE), in place of the default console handler (INFO and above); a property of
+    OFF silences the logger. Left as is if the property isn't set or the level is set already.
+     */
+    public static synchronized void initLogging(Logger logger, String levelProperty) {
+        String level = prop==null? null : prop.getProperty(levelProperty);
+        if (level == null || logger.getLevel() != null)
+            return;
+        ConsoleHandler handler = new ConsoleHandler();
+        handler.setLevel(Level.parse(level));
+        logger.addHandler(handler);
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.parse(level));
+    }
+
     public static int getNumWanted() { return numWanted; }
+
+    // Early stopping of the sampling of UEF/RLS (see SampleStopping); a tolerance of 0 draws all the samples
+    public static double getSamplingTolerance() {
+        return prop==null? 0 : Double.parseDouble(prop.getProperty("qpp.sampling.tolerance", "0"));
+    }
+
+    public static int getMinSamples() {
+        return prop==null? 3 : Integer.parseInt(prop.getProperty("qpp.sampling.min", "3"));
+    }
+
+    // The relevance models of Clarity/UEF/RLS over term ordinals (see TermOrdinalRelevanceModel) rather than term maps
+    public static boolean useTermOrdinals() {
+        return prop!=null && prop.getProperty("feedback.engine", "map").equals("ordinal");
+    }
     public static int getQppTopK() { return qppTopK; }
 
     public static QPPCorrelationMetric getCorrelationMetric() {
@@ -196,37 +206,65 @@ public class Settings {
         return retEvalMetrics.get(prop.getProperty("reteval.metric"));
     }
 
+    /*
+    Built (or memory-mapped from docid.map.dir) on first use. If that fails, the failure is
+    reported once and null returned from then on, i.e. the doc ids are looked up in the index
+    one at a time (see getDocIdFromOffset and getDocOffsetFromId) rather than the dictionary
+    being rebuilt on every lookup.
+     */
+    public static DocIdResolver getDocIdResolver() {
+        if (docIdResolver == null && !docIdResolverFailed) {
+            synchronized (Settings.class) {
+                if (docIdResolver == null && !docIdResolverFailed) {
+                    try {
+                        String sidecarDir = prop.getProperty("docid.map.dir");
+                        docIdResolver = DocIdResolver.open(reader, getIdFieldName(),
+                                sidecarDir==null? null : new File(sidecarDir));
+                    }
+                    catch (IOException ex) {
+                        ex.printStackTrace();
+                        System.err.println("Failed to build the dictionary of Doc-Id strings and Lucene integer offsets; looking the doc ids up in the index instead");
+                        docIdResolverFailed = true;
+                    }
+                }
+            }
+        }
+        return docIdResolver;
+    }
+
     public static String getDocIdFromOffset(int docOffset) {
+        DocIdResolver docIdResolver = getDocIdResolver();
+        if (docIdResolver != null)
+            return docIdResolver.getDocId(docOffset);
+
         try {
-            return reader.document(docOffset).get(FieldConstants.FIELD_ID);
+            return reader.document(docOffset).get(getIdFieldName());
         }
         catch (Exception ex) { ex.printStackTrace(); }
         return null;
     }
 
+    // Kept for the callers of the former in-memory maps; the dictionary covers every doc of the index
     public static String getDocIdFromOffset_Mem(int docOffset) {
-        if (offset2DocIdMap.size()==0)
-            return getDocIdFromOffset(docOffset);
-
-        return offset2DocIdMap.get(docOffset);
+        return getDocIdFromOffset(docOffset);
     }
 
     public static int getDocOffsetFromId(String docId) {
+        DocIdResolver docIdResolver = getDocIdResolver();
+        if (docIdResolver != null)
+            return docIdResolver.getDocOffset(docId);
+
         try {
-            Query query = new TermQuery(new Term(FieldConstants.FIELD_ID, docId));
+            Query query = new TermQuery(new Term(getIdFieldName(), docId));
             TopDocs topDocs = searcher.search(query, 1);
-            return topDocs.scoreDocs[0].doc;
+            return topDocs.scoreDocs.length==0? -1 : topDocs.scoreDocs[0].doc;
         }
         catch (Exception ex) { ex.printStackTrace(); }
         return -1;
     }
 
     public static int getDocOffsetFromId_Mem(String docId) {
-        if (docId2OffsetMap.size()==0)
-            return getDocOffsetFromId(docId);
-
-        Integer offset = docId2OffsetMap.get(docId);
-        return offset==null? -1 : offset;
+        return getDocOffsetFromId(docId);
     }
 
     public static String analyze(Analyzer analyzer, String query) {
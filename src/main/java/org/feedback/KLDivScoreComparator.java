@@ -0,0 +1,14 @@
+package org.feedback;
+
+import org.apache.lucene.search.ScoreDoc;
+
+import java.util.Comparator;
+
+// Ascending order of the KL-div scores of the reranked docs (see RelevanceModel.rerankDocs)
+class KLDivScoreComparator implements Comparator<ScoreDoc> {
+
+    @Override
+    public int compare(ScoreDoc a, ScoreDoc b) {
+        return a.score < b.score? -1 : a.score == b.score? 0 : 1;
+    }    
+}
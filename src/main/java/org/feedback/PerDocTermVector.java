@@ -6,6 +6,7 @@
 package org.feedback;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 /**
  *
@@ -14,12 +15,12 @@ import java.util.HashMap;
 public class PerDocTermVector {
     int docId;
     float sim;  // similarity with query
-    HashMap<String, RetrievedDocTermInfo> perDocStats;
+    HashMap<String, RetrievedDocTermInfo> perDocStats; // in the order of the term vector
     float sum_tf;
     
     public PerDocTermVector(int docId) {
         this.docId = docId;
-        perDocStats = new HashMap<>();
+        perDocStats = new LinkedHashMap<>();
     }
     
     public float getNormalizedTf(String term) {
@@ -0,0 +1,25 @@
+package org.feedback;
+
+import org.apache.lucene.search.TopDocs;
+import org.trec.TRECQuery;
+
+import java.util.List;
+import java.util.Set;
+
+/*
+A relevance model estimated off the top docs of a query, as the QPP methods use it: either the
+term maps of RelevanceModelIId (and RelevanceModelConditional) or the term ordinal arrays of
+TermOrdinalRelevanceModel.
+ */
+public interface RelevanceModel {
+    void computeFdbkWeights() throws Exception;
+
+    float getQueryClarity();
+
+    TopDocs rerankDocs();
+
+    TRECQuery expandQuery(TRECQuery trecQuery, int numExpansionTerms) throws Exception;
+
+    // the numTerms terms of the highest weights (in descending order of the weights) other than the excluded
+    List<RetrievedDocTermInfo> topTerms(int numTerms, Set<String> excluded);
+}
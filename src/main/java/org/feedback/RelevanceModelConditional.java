@@ -21,6 +21,11 @@ public class RelevanceModelConditional extends RelevanceModelIId {
     public RelevanceModelConditional(IndexSearcher searcher, TRECQuery trecQuery, TopDocs topDocs, int numTopDocs) throws Exception {
         super(searcher, trecQuery, topDocs, numTopDocs);
     }
+
+    public RelevanceModelConditional(IndexSearcher searcher, TRECQuery trecQuery, TopDocs topDocs, int numTopDocs,
+                                     Map<Integer, PerDocTermVector> docTermVecCache) throws Exception {
+        super(searcher, trecQuery, topDocs, numTopDocs, docTermVecCache);
+    }
     
     @Override
     public void computeFdbkWeights() throws IOException, Exception {
@@ -11,6 +11,7 @@ import org.apache.lucene.search.*;
 import org.trec.FieldConstants;
 import org.trec.TRECQuery;
 import java.util.*;
+import java.util.stream.Collectors;
 import java.io.IOException;
 
 /**
@@ -18,15 +19,7 @@ import java.io.IOException;
  * @author Debasis
  */
 
-class KLDivScoreComparator implements Comparator<ScoreDoc> {
-
-    @Override
-    public int compare(ScoreDoc a, ScoreDoc b) {
-        return a.score < b.score? -1 : a.score == b.score? 0 : 1;
-    }    
-}
-
-public class RelevanceModelIId {
+public class RelevanceModelIId implements RelevanceModel {
     TopDocs topDocs;
     TRECQuery trecQuery;
     float mixingLambda;
@@ -35,6 +28,7 @@ public class RelevanceModelIId {
     float fbweight;
     IndexReader reader;
     IndexSearcher searcher;
+    Map<Integer, PerDocTermVector> docTermVecCache; // if not null, the term vectors of the top docs (already read)
 
     static final float TERM_SEL_DF_THRESH = 0.8f;
     static final float MIXING_LAMBDA = 0.8f;
@@ -51,6 +45,13 @@ public class RelevanceModelIId {
         fbweight = FBWEIGHT;
         mixingLambda = MIXING_LAMBDA;
     }
+
+    // with the term vectors of the top docs read already (see RetrievedDocsTermStats.readTermVectors)
+    public RelevanceModelIId(IndexSearcher searcher, TRECQuery trecQuery, TopDocs topDocs, int numTopDocs,
+                             Map<Integer, PerDocTermVector> docTermVecCache) {
+        this(searcher, trecQuery, topDocs, numTopDocs);
+        this.docTermVecCache = docTermVecCache;
+    }
     
     public RetrievedDocsTermStats getRetrievedDocsTermStats() {
         return this.retrievedDocsTermStats;
@@ -58,7 +59,7 @@ public class RelevanceModelIId {
     
     public void buildTermStats() throws Exception {
         retrievedDocsTermStats = new
-                RetrievedDocsTermStats(reader, topDocs, numTopDocs);
+                RetrievedDocsTermStats(reader, topDocs, numTopDocs, docTermVecCache);
         retrievedDocsTermStats.buildAllStats();
         reader = retrievedDocsTermStats.getReader();
     }
@@ -104,6 +105,17 @@ public class RelevanceModelIId {
         }
     }
     
+    @Override
+    public List<RetrievedDocTermInfo> topTerms(int numTerms, Set<String> excluded) {
+        return retrievedDocsTermStats
+            .getTermStats()
+            .values().stream()
+            .sorted(RetrievedDocTermInfo::compareTo)
+            .filter(x -> !excluded.contains(x.getTerm()))
+            .limit(numTerms)
+            .collect(Collectors.toList());
+    }
+
     public float getQueryClarity() {
         float klDiv = 0;
         // For each v \in V (vocab of top ranked documents)
@@ -162,10 +174,7 @@ public class RelevanceModelIId {
         computeFdbkWeights();
 
         TRECQuery expandedQuery = new TRECQuery(trecQuery);
-        Set<Term> origTerms = new HashSet<>();
-        trecQuery.luceneQuery
-                .createWeight(searcher, ScoreMode.COMPLETE, 1)
-                .extractTerms(origTerms);
+        Set<Term> origTerms = trecQuery.getQueryTerms(searcher);
         HashMap<String, String> origQueryWordStrings = new HashMap<>();
 
         float normalizationFactor = 0;
@@ -12,6 +12,7 @@ import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.util.BytesRef;
 import org.trec.FieldConstants;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -29,6 +30,7 @@ public class RetrievedDocsTermStats {
     Map<String, RetrievedDocTermInfo> termStats;
     List<PerDocTermVector> docTermVecs;
     int numTopDocs;
+    Map<Integer, PerDocTermVector> docTermVecCache; // read-only; null if the vectors are to be read off the index
     
     public RetrievedDocsTermStats(IndexReader reader,
             TopDocs topDocs, int numTopDocs) {
@@ -40,6 +42,26 @@ public class RetrievedDocsTermStats {
         this.numTopDocs = numTopDocs;
     }
 
+    // Stats of topDocs off already read doc vectors (see readTermVectors), e.g. for a subset of a list
+    public RetrievedDocsTermStats(IndexReader reader,
+            TopDocs topDocs, int numTopDocs, Map<Integer, PerDocTermVector> docTermVecCache) {
+        this(reader, topDocs, numTopDocs);
+        this.docTermVecCache = docTermVecCache;
+    }
+
+    /*
+    The term vectors of the docs of a list, read once so that the stats of any number of lists
+    drawn from its docs (e.g. the UEF samples) can be built without going back to the index.
+    A doc without a vector maps to null. The sim of a vector is the score of the doc in the list.
+    The vectors aren't modified by the stats built off them, hence may be shared across threads.
+     */
+    public static Map<Integer, PerDocTermVector> readTermVectors(IndexReader reader, TopDocs topDocs) throws IOException {
+        Map<Integer, PerDocTermVector> docTermVecs = new HashMap<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs)
+            docTermVecs.put(scoreDoc.doc, readTermVector(reader, scoreDoc.doc, scoreDoc.score));
+        return docTermVecs;
+    }
+
     public PerDocTermVector getDocTermVecs(int i) {
         return docTermVecs.get(i);
     }
@@ -72,12 +94,30 @@ public class RetrievedDocsTermStats {
     }
     
     PerDocTermVector buildStatsForSingleDoc(int docId, int rank, float sim) throws Exception {
+        PerDocTermVector docTermVector = docTermVecCache != null && docTermVecCache.containsKey(docId)?
+                docTermVecCache.get(docId) : readTermVector(reader, docId, sim);
+        if (docTermVector == null || rank >= numTopDocs)
+            return docTermVector;
+
+        // collection stats for top k docs
+        for (RetrievedDocTermInfo w : docTermVector.perDocStats.values()) {
+            RetrievedDocTermInfo trmInfo = termStats.get(w.getTerm());
+            if (trmInfo == null) {
+                trmInfo = new RetrievedDocTermInfo(w.getTerm());
+                termStats.put(w.getTerm(), trmInfo);
+            }
+            trmInfo.incrementTf(w.getTf());
+            trmInfo.incrementDF();
+        }
+        return docTermVector;
+    }
+
+    static PerDocTermVector readTermVector(IndexReader reader, int docId, float sim) throws IOException {
         String termText;
         BytesRef term;
         Terms tfvector;
         TermsEnum termsEnum;
         int tf;
-        RetrievedDocTermInfo trmInfo;
         PerDocTermVector docTermVector = new PerDocTermVector(docId);
         docTermVector.sim = sim;  // sim value for document D_j
         
@@ -91,21 +131,7 @@ public class RetrievedDocsTermStats {
     	while ((term = termsEnum.next()) != null) { // explore the terms for this field
             termText = term.utf8ToString();
             tf = (int)termsEnum.totalTermFreq();
-            
-            // per-doc
             docTermVector.perDocStats.put(termText, new RetrievedDocTermInfo(termText, tf));
-            if (rank >= numTopDocs) {
-                continue;
-            }
-            
-            // collection stats for top k docs
-            trmInfo = termStats.get(termText);
-            if (trmInfo == null) {
-                trmInfo = new RetrievedDocTermInfo(termText);
-            }
-            trmInfo.incrementTf(tf);
-            trmInfo.incrementDF();
-            termStats.put(termText, trmInfo);
         }
     	docTermVector.setSumTf();
         return docTermVector;
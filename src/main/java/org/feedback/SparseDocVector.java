@@ -0,0 +1,23 @@
+package org.feedback;
+
+import org.apache.lucene.util.ArrayUtil;
+
+// The term vector of a doc over the ordinals of a TermVectors (in the order of the term vector)
+class SparseDocVector {
+    int docId;
+    float sim;      // similarity with query
+    int[] ords;
+    int[] tfs;
+    float sum_tf;
+
+    SparseDocVector(int docId, float sim, int[] ords, int[] tfs, int length) {
+        this.docId = docId;
+        this.sim = sim;
+        this.ords = ords.length == length? ords : ArrayUtil.copyOfSubArray(ords, 0, length);
+        this.tfs = tfs.length == length? tfs : ArrayUtil.copyOfSubArray(tfs, 0, length);
+        int sum = 0;
+        for (int tf : this.tfs)
+            sum += tf;
+        sum_tf = (float)sum;
+    }
+}
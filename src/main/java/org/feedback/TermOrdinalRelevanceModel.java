@@ -0,0 +1,233 @@
+package org.feedback;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.BytesRef;
+import org.trec.FieldConstants;
+import org.trec.TRECQuery;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/*
+The conditional relevance model (as RelevanceModelConditional estimates it) over term ordinals: the
+doc vectors are those of a TermVectors, and the tfs, dfs and weights of the vocabulary of the top
+docs are arrays indexed by the ordinals, so that computing the weights, the clarity and the
+reranking is array arithmetic with no term decoded or hashed. The weights come out the same as
+those of RelevanceModelConditional; the clarity and the KL-div scores differ by rounding alone, as
+they are summed in another order.
+The KL-div of a doc sums the weights of the terms the doc doesn't have against an EPSILON tf, and
+that part is the same for every doc; it's computed once over the vocabulary (as if no doc had any
+of the terms), and each doc then only corrects it for the terms it does have, i.e. the reranking
+costs the length of the docs rather than the size of the vocabulary per doc.
+A doc without a term vector is scored as one that has none of the terms.
+ */
+public class TermOrdinalRelevanceModel implements RelevanceModel {
+    TopDocs topDocs;
+    TRECQuery trecQuery;
+    int numTopDocs;
+    float mixingLambda;
+    float fbweight;
+    IndexReader reader;
+    IndexSearcher searcher;
+    TermVectors termVectors;    // if not null on construction, the vectors of the docs (already read)
+
+    SparseDocVector[] docVecs;  // [i] the vector of the i-th doc of topDocs (null if it has none)
+    int[] vocab;                // the ordinals of the terms of the top numTopDocs docs (in the order first seen)
+    int[] tf;                   // [ord] the tf of the term in the top numTopDocs docs
+    int[] df;                   // [ord] its df in them
+    float[] weights;            // [ord] P(w|R)
+    int sumTf;
+    float sumDf;
+
+    static final float EPSILON = 0.0001f;
+
+    public TermOrdinalRelevanceModel(IndexSearcher searcher, TRECQuery trecQuery, TopDocs topDocs, int numTopDocs) {
+        this.reader = searcher.getIndexReader();
+        this.searcher = searcher;
+        this.trecQuery = trecQuery;
+        this.topDocs = topDocs;
+        this.numTopDocs = numTopDocs;
+        fbweight = RelevanceModelIId.FBWEIGHT;
+        mixingLambda = RelevanceModelIId.MIXING_LAMBDA;
+    }
+
+    // with the term vectors of the docs read already, e.g. those of the list that topDocs is a sample of
+    public TermOrdinalRelevanceModel(IndexSearcher searcher, TRECQuery trecQuery, TopDocs topDocs, int numTopDocs,
+                                     TermVectors termVectors) {
+        this(searcher, trecQuery, topDocs, numTopDocs);
+        this.termVectors = termVectors;
+    }
+
+    public void buildTermStats() throws IOException {
+        if (termVectors == null)
+            termVectors = TermVectors.read(reader, topDocs);
+
+        int numTerms = termVectors.numTerms();
+        tf = new int[numTerms];
+        df = new int[numTerms];
+        weights = new float[numTerms];
+        docVecs = new SparseDocVector[topDocs.scoreDocs.length];
+        vocab = new int[numTerms];
+        sumTf = 0;
+        sumDf = numTopDocs;
+
+        int n = 0;
+        for (int i = 0; i < docVecs.length; i++) {
+            SparseDocVector docvec = docVecs[i] = termVectors.get(topDocs.scoreDocs[i].doc);
+            if (docvec == null || i >= numTopDocs)
+                continue;
+            for (int j = 0; j < docvec.ords.length; j++) {
+                int ord = docvec.ords[j];
+                if (df[ord]++ == 0)
+                    vocab[n++] = ord;
+                tf[ord] += docvec.tfs[j];
+                sumTf += docvec.tfs[j];
+            }
+        }
+        vocab = Arrays.copyOf(vocab, n);
+    }
+
+    @Override
+    public void computeFdbkWeights() throws IOException {
+        buildTermStats();
+
+        float sumSim = 0;
+        for (SparseDocVector docvec : docVecs) {
+            if (docvec != null)
+                sumSim += docvec.sim;
+        }
+
+        // For each doc in top ranked
+        for (int i = 0; i < docVecs.length && i < numTopDocs; i++) {
+            SparseDocVector docvec = docVecs[i];
+            if (docvec == null)
+                continue;
+            // For each word in this document
+            for (int j = 0; j < docvec.ords.length; j++) {
+                int ord = docvec.ords[j];
+                float p_w = mixingLambda*docvec.tfs[j]/docvec.sum_tf + (1-mixingLambda)*df[ord]/sumDf;
+                weights[ord] += p_w * docvec.sim/sumSim;
+            }
+        }
+    }
+
+    @Override
+    public float getQueryClarity() {
+        float klDiv = 0;
+        // For each v \in V (vocab of top ranked documents)
+        for (int ord : vocab) {
+            float p_w_C = df[ord]/sumDf;
+            klDiv += weights[ord] * Math.log(weights[ord]/p_w_C);
+        }
+        return klDiv;
+    }
+
+    @Override
+    public TopDocs rerankDocs() {
+        ScoreDoc[] klDivScoreDocs = new ScoreDoc[topDocs.scoreDocs.length];
+
+        // the KL-div of a doc with none of the terms
+        double klDivNone = 0;
+        for (int ord : vocab)
+            klDivNone += weights[ord] * Math.log(weights[ord]/EPSILON);
+
+        for (int i = 0; i < klDivScoreDocs.length; i++) {
+            double klDiv = klDivNone;
+            SparseDocVector docvec = docVecs[i];
+            if (docvec != null) {
+                for (int j = 0; j < docvec.ords.length; j++) {
+                    int ord = docvec.ords[j];
+                    if (df[ord] == 0) // not in the vocab of the top docs
+                        continue;
+                    float p_w_D = docvec.tfs[j]/docvec.sum_tf;
+                    klDiv += weights[ord] * Math.log(EPSILON/p_w_D);
+                }
+            }
+            klDivScoreDocs[i] = new ScoreDoc(topDocs.scoreDocs[i].doc, (float)klDiv);
+        }
+
+        // Sort the scoredocs in ascending order of the KL-Div scores
+        Arrays.sort(klDivScoreDocs, new KLDivScoreComparator());
+        return new TopDocs(topDocs.totalHits, klDivScoreDocs);
+    }
+
+    // the vocab in descending order of the weights (ties in the order the terms were first seen)
+    int[] rankedVocab() {
+        return IntStream.of(vocab).boxed()
+                .sorted((a, b) -> Float.compare(weights[b], weights[a]))
+                .mapToInt(x -> x)
+                .toArray();
+    }
+
+    @Override
+    public List<RetrievedDocTermInfo> topTerms(int numTerms, Set<String> excluded) {
+        List<RetrievedDocTermInfo> topTerms = new ArrayList<>(numTerms);
+        BytesRef ref = new BytesRef();
+        for (int ord : rankedVocab()) {
+            if (topTerms.size() >= numTerms)
+                break;
+            String term = termVectors.term(ord, ref).utf8ToString();
+            if (excluded.contains(term))
+                continue;
+            RetrievedDocTermInfo termInfo = new RetrievedDocTermInfo(term, tf[ord]);
+            termInfo.setDf(df[ord]);
+            termInfo.setWeight(weights[ord]);
+            topTerms.add(termInfo);
+        }
+        return topTerms;
+    }
+
+    // Post-RLM query expansion (see RelevanceModelIId.expandQuery)
+    @Override
+    public TRECQuery expandQuery(TRECQuery trecQuery, int numExpansionTerms) throws Exception {
+        final String FIELD_NAME = FieldConstants.FIELD_ANALYZED_CONTENT;
+
+        // Reestimate the relevance model on the (reranked) top docs
+        computeFdbkWeights();
+
+        TRECQuery expandedQuery = new TRECQuery(trecQuery);
+        Set<Term> origTerms = trecQuery.getQueryTerms(searcher);
+        Set<BytesRef> origQueryWords = new HashSet<>();
+
+        float normalizationFactor = 0;
+        BytesRef ref = new BytesRef();
+        for (int ord : vocab) {
+            weights[ord] *= (float)Math.log(
+                    reader.numDocs()/(float)reader.docFreq(new Term(FIELD_NAME, termVectors.term(ord, ref))));
+            normalizationFactor += weights[ord];
+        }
+        for (int ord : vocab)
+            weights[ord] /= normalizationFactor;
+
+        BooleanQuery.Builder expandedQueryBuilder = new BooleanQuery.Builder();
+        for (Term t : origTerms) {
+            origQueryWords.add(t.bytes());
+            BoostQuery tq = new BoostQuery(
+                    new TermQuery(t),
+                    (1-fbweight)/(float)origTerms.size());
+            expandedQueryBuilder.add(tq, BooleanClause.Occur.SHOULD);
+        }
+
+        int nTermsAdded = 0;
+        for (int ord : rankedVocab()) {
+            if (nTermsAdded >= numExpansionTerms)
+                break;
+            BytesRef term = termVectors.term(ord, new BytesRef());
+            if (origQueryWords.contains(term))
+                continue;
+
+            BoostQuery tq = new BoostQuery(
+                    new TermQuery(new Term(FIELD_NAME, BytesRef.deepCopyOf(term))),
+                    fbweight*weights[ord]
+            );
+            expandedQueryBuilder.add(tq, BooleanClause.Occur.SHOULD);
+            nTermsAdded++;
+        }
+
+        expandedQuery.luceneQuery = expandedQueryBuilder.build();
+        return expandedQuery;
+    }
+}
@@ -0,0 +1,72 @@
+package org.feedback;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.trec.FieldConstants;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+The term vectors of the docs of a list with the terms mapped to dense ordinals (in the order they're
+first seen), i.e. the vocabulary of the list is a BytesRefHash and each doc an int[] of ordinals with
+an int[] of their tfs, so that no term is decoded to a string nor looked up by its hash when the
+relevance model is estimated (see TermOrdinalRelevanceModel).
+Read once per list and not modified after, hence may be shared across threads, e.g. by the models
+of the UEF samples drawn from the list.
+ */
+public class TermVectors {
+    BytesRefHash terms;
+    Map<Integer, SparseDocVector> docVecs;  // a doc without a vector maps to null
+
+    TermVectors() {
+        terms = new BytesRefHash();
+        docVecs = new HashMap<>();
+    }
+
+    public static TermVectors read(IndexReader reader, TopDocs topDocs) throws IOException {
+        TermVectors termVectors = new TermVectors();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            if (!termVectors.docVecs.containsKey(scoreDoc.doc))
+                termVectors.docVecs.put(scoreDoc.doc, termVectors.readDoc(reader, scoreDoc.doc, scoreDoc.score));
+        }
+        return termVectors;
+    }
+
+    SparseDocVector readDoc(IndexReader reader, int docId, float sim) throws IOException {
+        Terms tfvector = reader.getTermVector(docId, FieldConstants.FIELD_ANALYZED_CONTENT);
+        if (tfvector == null || tfvector.size() == 0)
+            return null;
+
+        int size = tfvector.size() > 0? (int)tfvector.size() : 16;
+        int[] ords = new int[size];
+        int[] tfs = new int[size];
+        int n = 0;
+        BytesRef term;
+        TermsEnum termsEnum = tfvector.iterator();
+        while ((term = termsEnum.next()) != null) {
+            int ord = terms.add(term);
+            if (n == ords.length) {
+                ords = ArrayUtil.grow(ords, n + 1);
+                tfs = ArrayUtil.grow(tfs, n + 1);
+            }
+            ords[n] = ord < 0? -ord - 1 : ord;
+            tfs[n++] = (int)termsEnum.totalTermFreq();
+        }
+        return new SparseDocVector(docId, sim, ords, tfs, n);
+    }
+
+    // null if the doc has no vector (or isn't one of the list)
+    SparseDocVector get(int docId) { return docVecs.get(docId); }
+
+    public int numTerms() { return terms.size(); }
+
+    public BytesRef term(int ord, BytesRef ref) { return terms.get(ord, ref); }
+}
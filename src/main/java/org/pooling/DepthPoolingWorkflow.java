@@ -15,6 +15,8 @@ import org.trec.FieldConstants;
 import org.trec.TRECQuery;
 import org.trec.TRECQueryParser;
 import org.evaluator.Evaluator;
+import org.evaluator.PoolDepthSweep;
+import org.evaluator.LeaveOneOutPool;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -24,7 +26,9 @@ import java.util.stream.Collectors;
 public class DepthPoolingWorkflow extends NQCCalibrationWorkflow  {
     int depthRange;
     Evaluator refEvaluator;
-    Evaluator depthBasedEvaluator;
+    PoolDepthSweep depthSweep;
+    double[][] sweptMaps;       // [depth][system] MAPs of the systems at every uniform pool depth
+    double avgRecallAtDepths;   // of the last evaluated pool
 
     static Similarity[] Sims = {
             new BM25Similarity(.5f, .25f),
@@ -54,12 +58,16 @@ public class DepthPoolingWorkflow extends NQCCalibrationWorkflow  {
         return qppEstimates;
     }
 
-    float evaluateRun(Evaluator evaluator, List<TRECQuery> queries, IRSystem system) throws Exception {
-        float evaluated_metric = 0;
-        for (TRECQuery query: queries) {
-            evaluated_metric += evaluator.compute(query.id, system, Metric.AP);
+    // sets the MAP of each system, from the [system][query] AP matrix of the evaluator
+    void computeMAPs(Evaluator evaluator, List<IRSystem> systems) {
+        List<String> queryIds = queries.stream().map(x->x.id).collect(Collectors.toList());
+        double[][] aps = evaluator.compute(systems, queryIds, Metric.AP);
+        for (int i=0; i < aps.length; i++) {
+            float map = 0;  // map of this run
+            for (double ap: aps[i])
+                map += ap;
+            systems.get(i).map = map/(float)queryIds.size();
         }
-        return evaluated_metric/(float)queries.size();
     }
 
     List<IRSystem> evaluateRuns(int maxDepth) throws Exception {
@@ -91,35 +99,23 @@ public class DepthPoolingWorkflow extends NQCCalibrationWorkflow  {
         }
 
         refEvaluator = new Evaluator(Settings.getQrelsFile(), pool);
-        for (IRSystem system: pool) {
-            float map = 0;  // map of this run
-            for (TRECQuery query : this.queries) {
-                map += refEvaluator.compute(query.id, system, Metric.AP); // AP of this query
-            }
-            system.map = map/(float)this.queries.size();
-        }
+        computeMAPs(refEvaluator, pool);
         System.out.println("Number of systems: " + pool.size());
         return pool;
     }
 
     List<IRSystem> evaluateRuns(String resFileDir, int maxDepth) throws Exception {
-        List<IRSystem> systems = new ArrayList<>();
         List<String> queryIds = queries.stream().map(x->x.id).collect(Collectors.toList());
         File[] resFiles = new File(resFileDir).listFiles();
 
-        for (int i=0; i < resFiles.length; i++) {
-            IRSystem irSystem = new IRSystem(resFiles[i], queryIds, maxDepth);
-            systems.add(irSystem);
-        }
+        // the runs are loaded in parallel (see RunDirEvaluator for evaluating a run directory in bounded memory)
+        List<IRSystem> systems = Arrays.stream(resFiles)
+                .parallel()
+                .map(resFile -> new IRSystem(resFile, queryIds, maxDepth))
+                .collect(Collectors.toList());
 
         refEvaluator = new Evaluator(Settings.getQrelsFile(), systems);
-        for (IRSystem system: systems) {
-            float map = 0;  // map of this run
-            for (TRECQuery query : this.queries) {
-                map += refEvaluator.compute(query.id, system, Metric.AP); // AP of this query
-            }
-            system.map = map/(float)this.queries.size();
-        }
+        computeMAPs(refEvaluator, systems);
         System.out.println("Number of systems: " + systems.size());
         return systems;
     }
@@ -194,11 +190,21 @@ public class DepthPoolingWorkflow extends NQCCalibrationWorkflow  {
             }
         }
 
-        depthBasedEvaluator = new Evaluator(Settings.getQrelsFile(), reevaluated_systems);
-        for (IRSystem system: reevaluated_systems) {
-            // evaluate each system with this depth-aware evaluator
-            system.map = evaluateRun(depthBasedEvaluator, queries, system);
+        // evaluate each system against the pool of these depths (read off the depth sweep if uniform)
+        List<String> qids = queries.stream().map(x->x.id).collect(Collectors.toList());
+        int[][] systemDepths = new int[reevaluated_systems.size()][];
+        for (int i=0; i < systemDepths.length; i++) {
+            IRSystem system = reevaluated_systems.get(i);
+            systemDepths[i] = qids.stream().mapToInt(x->system.getDepth(x)).toArray();
         }
+        double[] maps;
+        if (constantDepth > 0 && constantDepth < sweptMaps.length)
+            maps = sweptMaps[constantDepth];
+        else
+            maps = depthSweep.evaluate(systemDepths);
+        for (int i=0; i < maps.length; i++)
+            reevaluated_systems.get(i).map = maps[i];
+        avgRecallAtDepths = avgRecall(depthSweep.poolSizes(systemDepths), systemDepths[0]);
 
         List<Integer> depths = reevaluated_systems.get(0).depths.values().stream().collect(Collectors.toList());
         System.out.println("Depths per query: " + depths);
@@ -210,6 +216,42 @@ public class DepthPoolingWorkflow extends NQCCalibrationWorkflow  {
         return reevaluated_systems;
     }
 
+    // Sweeps the pool depth from 1 to maxDepth over the systems (evaluated with the full depth)
+    void sweepDepths(List<IRSystem> systems, int maxDepth) {
+        List<String> qids = queries.stream().map(x->x.id).collect(Collectors.toList());
+        depthSweep = new PoolDepthSweep(Settings.getQrelsFile(), systems, qids);
+        sweptMaps = depthSweep.sweep(maxDepth);
+    }
+
+    // Leave-one-run-out reusability of the pool of the systems at a uniform depth
+    void printLeaveOneOutStats(List<IRSystem> systems, int depth) {
+        int[][] depths = new int[systems.size()][queries.size()];
+        for (int[] systemDepths: depths)
+            Arrays.fill(systemDepths, depth);
+        LeaveOneOutPool.Result[] results = new LeaveOneOutPool(depthSweep, depths).leaveEachOut();
+
+        System.out.println("Leave-one-run-out with depth = " + depth);
+        for (LeaveOneOutPool.Result result: results)
+            System.out.println(result);
+        System.out.println(String.format("Max MAP shift = %.4f",
+                Arrays.stream(results).mapToDouble(x->x.shift()).max().orElse(0)));
+        System.out.println(String.format("Min Kendall's (all systems) = %.4f",
+                Arrays.stream(results).mapToDouble(x->x.tau).min().orElse(1)));
+        System.out.println(String.format("Kendall's (runs left out) = %.4f", LeaveOneOutPool.tau(results)));
+    }
+
+    // average #pooled rels of the judged queries, weighted by the inverse of their depths
+    double avgRecall(int[] poolSizes, int[] depths) {
+        double sum = 0, z = 0;
+        for (int i=0; i < poolSizes.length; i++) {
+            if (poolSizes[i] < 0)
+                continue;
+            sum += 1/(double)depths[i] * poolSizes[i];
+            z += 1/(double)depths[i];
+        }
+        return sum/z; // weighted average
+    }
+
     double rmse(double[] a, double[] b) {
         double s = 0;
         for (int i=0; i<a.length; i++) {
@@ -225,7 +267,7 @@ public class DepthPoolingWorkflow extends NQCCalibrationWorkflow  {
         System.out.println(String.format("Pearson's = %.4f", (new PearsonCorrelation()).correlation(refMaps, approxMaps)));
         System.out.println(String.format("Kendall's = %.4f", (new KendallsCorrelation()).correlation(refMaps, approxMaps)));
         System.out.println(String.format("RMSE = %.4f", rmse(refMaps, approxMaps)));
-        double recall = depthBasedEvaluator.avgRecallAtVariableDepths();
+        double recall = avgRecallAtDepths;
         System.out.println(String.format("Avg.Recall@Depths = %.4f", recall));
     }
 
@@ -253,9 +295,14 @@ public class DepthPoolingWorkflow extends NQCCalibrationWorkflow  {
                 systems_maxDepth = depthPoolingWorkflow.evaluateRuns(Settings.maxDepth); // initial eval with max depth
             }
 
+            depthPoolingWorkflow.sweepDepths(systems_maxDepth, Settings.maxDepth);
+
             System.out.println("System MAPs with depth = " + Settings.maxDepth);
             System.out.println(systems_maxDepth.stream().collect(Collectors.toMap(x->x.name, x->x.map)));
 
+            if (Boolean.parseBoolean(Settings.getProp().getProperty("pool.leave_one_out", "false")))
+                depthPoolingWorkflow.printLeaveOneOutStats(systems_maxDepth, Settings.maxDepth);
+
             List<IRSystem> systems_varDepth = depthPoolingWorkflow.evaluateRunAndPrintStats(systems_maxDepth, 0);
             System.out.println("System MAPs with variable depth");
             System.out.println(systems_varDepth.stream().collect(Collectors.toMap(x->x.name, x->x.map)));
@@ -2,6 +2,7 @@ package org.pooling;
 
 import org.apache.lucene.search.TopDocs;
 import org.evaluator.AllRetrievedResults;
+import org.evaluator.RankedLists;
 
 import java.util.*;
 import java.io.*;
@@ -11,15 +12,16 @@ public class IRSystem implements Comparable<IRSystem> {
     String name;
     String tdn;
     String sim;
-    Map<String, TopDocs> topDocsMap; // a list of topDocs for the query set
+    RankedLists lists; // the ranked lists for the query set (immutable, shared by the copies of the system)
     Map<String, Integer> depths;
     double map;
 
+    // A variant of the system to be evaluated with other depths: shares the lists, only the depths are its own
     IRSystem(IRSystem that) {
         this.name = that.name;
         this.tdn = that.tdn;
         this.sim = that.sim;
-        this.topDocsMap = new HashMap<>(that.topDocsMap);
+        this.lists = that.lists;
         this.depths = new HashMap<>();
     }
 
@@ -27,24 +29,24 @@ public class IRSystem implements Comparable<IRSystem> {
         this.tdn = tdn;
         this.sim = sim;
         name = tdn + ":" + sim.toString();
-        topDocsMap = null;
+        lists = RankedLists.EMPTY;
         depths = queryIds.stream().collect(Collectors.toMap(x->x, x->constantDepth));
     }
 
     IRSystem(File resFile, List<String> queryIds, int constantDepth) {
         this.name = resFile.getName();
         AllRetrievedResults allRetrievedResults = new AllRetrievedResults(resFile.getPath());
-        topDocsMap = allRetrievedResults.castToTopDocs();
+        lists = new RankedLists(allRetrievedResults);
         depths = queryIds.stream().collect(Collectors.toMap(x->x, x->constantDepth));
     }
 
     IRSystem(String name, Map<String, TopDocs> topDocsMap) {
         this.name = name;
-        this.topDocsMap = new HashMap<>(topDocsMap);
+        this.lists = new RankedLists(topDocsMap);
     }
 
     void setTopDocs(Map<String, TopDocs> topDocsMap) {
-        this.topDocsMap = new HashMap<>(topDocsMap);
+        this.lists = new RankedLists(topDocsMap);
     }
 
     public List<Integer> getDepths() { return this.depths.values().stream().collect(Collectors.toList()); }
@@ -58,8 +60,9 @@ public class IRSystem implements Comparable<IRSystem> {
         return String.format("%s: %.4f", name, map);
     }
 
-    public TopDocs getTopDocs(String qid) { return topDocsMap.get(qid); }
+    // A TopDocs made off the lists on each call; the evaluation reads getRankedLists() directly
+    public String getName() { return name; }
+    public TopDocs getTopDocs(String qid) { return lists.getTopDocs(qid); }
+    public RankedLists getRankedLists() { return lists; }
     public int getDepth(String qid) { return depths.get(qid); }
 }
-
-
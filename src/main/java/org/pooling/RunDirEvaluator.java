@@ -0,0 +1,201 @@
+package org.pooling;
+
+import org.evaluator.AllRelRcds;
+import org.evaluator.AllRetrievedResults;
+import org.evaluator.Metric;
+import org.evaluator.MetricAccumulator;
+import org.evaluator.RetrievedResults;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+Evaluates every run (TREC text or binary, see BinaryRun) of a directory against the depth-pool
+of all of them, without holding the runs in memory: a fixed number of worker threads each load
+one run at a time and reduce it to where the rel docs of each query occur in its ranked list,
+which is all that both the pool (the rel docs within the depth of any run) and the AP of the run
+against the pool depend on. At most numThreads runs are resident at any time.
+Works off the doc names of the runs and the qrels alone, i.e. no index is needed.
+
+Reports the MAP (over the judged queries, ranks being the positions in the lists) of each run,
+the pooled qrels (written out in the TREC format if an output file is given) and throughput.
+ */
+public class RunDirEvaluator {
+    AllRelRcds qrels;
+    List<String> qids;          // the judged queries (sorted)
+    String[][] relDocs;         // [query] the rel docs (sorted)
+    int depth;
+    int numThreads;
+
+    // where the rel docs of each query occur in a run
+    static class RunSummary {
+        String name;
+        int numRows;
+        int[][] relPositions;   // [query] 0-based positions of the rel docs retrieved (ascending)
+        int[][] relOrdinals;    // [query] the rel docs there (indexes into relDocs[query])
+        double map;
+    }
+
+    public RunDirEvaluator(String qrelsFile, int depth, int numThreads) {
+        qrels = AllRelRcds.get(qrelsFile);
+        qids = new ArrayList<>(new TreeSet<>(qrels.queries()));
+        relDocs = new String[qids.size()][];
+        for (int q = 0; q < relDocs.length; q++) {
+            relDocs[q] = qrels.getRelDocs(qids.get(q)).keySet().toArray(new String[0]);
+            Arrays.sort(relDocs[q]);
+        }
+        this.depth = depth;
+        this.numThreads = numThreads;
+    }
+
+    RunSummary summarize(File resFile) {
+        AllRetrievedResults run = new AllRetrievedResults(resFile.getPath());
+        RunSummary summary = new RunSummary();
+        summary.name = resFile.getName();
+        summary.relPositions = new int[qids.size()][];
+        summary.relOrdinals = new int[qids.size()][];
+
+        for (int q = 0; q < qids.size(); q++) {
+            RetrievedResults rr = run.getRetrievedResultsForQueryId(qids.get(q));
+            int[] positions = rr==null? new int[0] : rr.positionsOf(relDocs[q]);
+            summary.numRows += rr==null? 0 : rr.getNumRet();
+
+            long[] hits = new long[positions.length];  // position << 32 | rel ordinal
+            int n = 0;
+            for (int k = 0; k < positions.length; k++) {
+                if (positions[k] >= 0)
+                    hits[n++] = (long)positions[k] << 32 | k;
+            }
+            Arrays.sort(hits, 0, n);
+            summary.relPositions[q] = new int[n];
+            summary.relOrdinals[q] = new int[n];
+            for (int j = 0; j < n; j++) {
+                summary.relPositions[q][j] = (int)(hits[j] >>> 32);
+                summary.relOrdinals[q][j] = (int)hits[j];
+            }
+        }
+        return summary;
+    }
+
+    // Summaries of the runs (in the order of the files), loaded by numThreads workers
+    List<RunSummary> summarize(File[] resFiles) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<RunSummary>> futures = new ArrayList<>();
+            for (File resFile : resFiles)
+                futures.add(executor.submit(() -> summarize(resFile)));
+            List<RunSummary> summaries = new ArrayList<>();
+            for (Future<RunSummary> future : futures)
+                summaries.add(future.get());
+            return summaries;
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    // [query][rel ordinal] whether the rel doc is within the depth of any of the runs
+    boolean[][] pool(List<RunSummary> summaries) {
+        boolean[][] pooled = new boolean[qids.size()][];
+        for (int q = 0; q < pooled.length; q++) {
+            pooled[q] = new boolean[relDocs[q].length];
+            for (RunSummary summary : summaries) {
+                int[] positions = summary.relPositions[q];
+                for (int j = 0; j < positions.length && positions[j] < depth; j++)
+                    pooled[q][summary.relOrdinals[q][j]] = true;
+            }
+        }
+        return pooled;
+    }
+
+    void computeMAP(RunSummary summary, boolean[][] pooled) {
+        double map = 0;
+        for (int q = 0; q < qids.size(); q++) {
+            int numRel = 0;
+            for (boolean p : pooled[q])
+                numRel += p? 1 : 0;
+            if (numRel == 0)
+                continue;
+
+            MetricAccumulator acc = new MetricAccumulator(numRel);
+            for (int j = 0; j < summary.relPositions[q].length; j++) {
+                int rank = summary.relPositions[q][j] + 1;
+                if (pooled[q][summary.relOrdinals[q][j]])
+                    acc.addRel(rank, rank);
+            }
+            map += acc.get(Metric.AP);
+        }
+        summary.map = qids.isEmpty()? 0 : map/qids.size();
+    }
+
+    void writePool(boolean[][] pooled, File qrelsOut) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(qrelsOut))) {
+            for (int q = 0; q < qids.size(); q++) {
+                Map<String, Integer> rels = qrels.getRelDocs(qids.get(q));
+                for (int k = 0; k < pooled[q].length; k++) {
+                    if (pooled[q][k])
+                        bw.write(String.format("%s\t0\t%s\t%d\n", qids.get(q), relDocs[q][k], rels.get(relDocs[q][k])));
+                }
+            }
+        }
+    }
+
+    public List<RunSummary> evaluate(String resFileDir, String qrelsOut) throws Exception {
+        File[] resFiles = new File(resFileDir).listFiles(File::isFile);
+        Arrays.sort(resFiles);
+
+        long start = System.currentTimeMillis();
+        List<RunSummary> summaries = summarize(resFiles);
+        long loaded = System.currentTimeMillis();
+        boolean[][] pooled = pool(summaries);
+        for (RunSummary summary : summaries)
+            computeMAP(summary, pooled);
+        long end = System.currentTimeMillis();
+
+        for (RunSummary summary : summaries)
+            System.out.println(String.format("%s\t%.4f", summary.name, summary.map));
+
+        int numPooled = 0, numRel = 0;
+        for (int q = 0; q < pooled.length; q++) {
+            numRel += pooled[q].length;
+            for (boolean p : pooled[q])
+                numPooled += p? 1 : 0;
+        }
+        System.out.println(String.format("Pooled qrels (depth %d): %d of the %d rel docs of %d queries",
+                depth, numPooled, numRel, qids.size()));
+        if (qrelsOut != null) {
+            writePool(pooled, new File(qrelsOut));
+            System.out.println("Pooled qrels written to " + qrelsOut);
+        }
+
+        long numRows = summaries.stream().mapToLong(x -> x.numRows).sum();
+        double secs = Math.max(end - start, 1)/1000.0;
+        System.out.println(String.format("%d runs (%d rows) in %.2fs (loading %.2fs, pooling and evaluation %.2fs) " +
+                "with %d threads: %.1f runs/s, %.0f rows/s",
+                summaries.size(), numRows, secs, (loaded - start)/1000.0, (end - loaded)/1000.0,
+                numThreads, summaries.size()/secs, numRows/secs));
+        return summaries;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            args = new String[1];
+            args[0] = "init.properties";
+        }
+        try {
+            Properties prop = new Properties();
+            prop.load(new FileReader(args[0]));
+
+            RunDirEvaluator evaluator = new RunDirEvaluator(
+                    prop.getProperty("qrels.file"),
+                    Integer.parseInt(prop.getProperty("pool.maxdepth", "50")),
+                    Integer.parseInt(prop.getProperty("resfiledir.threads",
+                            String.valueOf(Runtime.getRuntime().availableProcessors()))));
+            evaluator.evaluate(prop.getProperty("resfiledir"), prop.getProperty("pool.qrels.out"));
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
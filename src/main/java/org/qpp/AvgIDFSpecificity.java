@@ -1,16 +1,12 @@
 package org.qpp;
 
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
 import org.evaluator.RetrievedResults;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
-import org.apache.lucene.search.ScoreMode;
 
 public class AvgIDFSpecificity implements QPPMethod {
     IndexReader reader;
@@ -34,24 +30,7 @@ public class AvgIDFSpecificity implements QPPMethod {
     }
 
     double averageIDF(Query q) throws IOException {
-        long N = reader.numDocs();
-        Set<Term> qterms = new HashSet<>();
-        //+++LUCENE_COMPATIBILITY: Sad there's no #ifdef like C!
-        // 8.x CODE
-        q.createWeight(searcher, ScoreMode.COMPLETE, 1).extractTerms(qterms);
-        // 5.x code
-        //q.createWeight(searcher, false).extractTerms(qterms);
-        //---LUCENE_COMPATIBILITY
-
-        float aggregated_idf = 0;
-        for (Term t: qterms) {
-            int n = reader.docFreq(t);
-            if(n != 0){
-                double idf = Math.log(N/(double)n);
-                aggregated_idf += idf;
-            }
-        }
-        return aggregated_idf/(double)qterms.size();
+        return QueryTermStats.get(searcher, q).avgIDF();
     }
 
     @Override
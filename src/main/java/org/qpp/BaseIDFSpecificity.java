@@ -1,16 +1,12 @@
 package org.qpp;
 
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
 import org.evaluator.RetrievedResults;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
-import org.apache.lucene.search.ScoreMode;
 
 public class BaseIDFSpecificity implements QPPMethod {
     IndexReader reader;
@@ -34,48 +30,25 @@ public class BaseIDFSpecificity implements QPPMethod {
     }
 
     double maxIDF(Query q) throws IOException {
-        long N = reader.numDocs();
-        Set<Term> qterms = new HashSet<>();
+        return QueryTermStats.get(searcher, q).maxIDF();
+    }
 
-        //+++LUCENE_COMPATIBILITY: Sad there's no #ifdef like C!
-        // 8.x CODE
-        q.createWeight(searcher, ScoreMode.COMPLETE, 1).extractTerms(qterms);
-        // 5.x CODE
-        //q.createWeight(searcher, false).extractTerms(qterms);
-        //---LUCENE_COMPATIBILITY
+    // max over idfs(q) (without copying the array)
+    double maxSmoothedIDF(Query q) throws IOException {
+        return QueryTermStats.get(searcher, q).maxSmoothedIDF();
+    }
 
-        double aggregated_idf = 0;
-        for (Term t: qterms) {
-            int n = reader.docFreq(t);
-            if(n != 0){
-                double idf = Math.log(N/(double)n);
-                if (idf > aggregated_idf)
-                    aggregated_idf = idf;
-            }
-        }
-        return aggregated_idf;
+    // mean of scores[offset, offset+n), e.g. of a prefix of RetrievedResults.getScores()
+    static double mean(float[] scores, int offset, int n) {
+        double sum = 0;
+        for (int i = offset; i < offset + n; i++)
+            sum += scores[i];
+        return sum/n;
     }
 
+    // idfs of all the query terms (with df=0 treated as 1); shared, hence not to be modified
     double[] idfs(Query q)  throws IOException {
-        long N = reader.numDocs();
-        Set<Term> qterms = new HashSet<>();
-
-        //+++LUCENE_COMPATIBILITY: Sad there's no #ifdef like C!
-        // 8.x CODE
-        q.createWeight(searcher, ScoreMode.COMPLETE, 1).extractTerms(qterms);
-        // 5.x CODE
-        //q.createWeight(searcher, false).extractTerms(qterms);
-        //---LUCENE_COMPATIBILITY
-        double[] idfs = new double[qterms.size()];
-
-        double aggregated_idf = 0;
-        int i = 0;
-        for (Term t: qterms) {
-            int n = reader.docFreq(t);
-            if (n==0) n = 1; // avoid 0 error!
-            idfs[i++] = Math.log(N/(double)n);;
-        }
-        return idfs;
+        return QueryTermStats.get(searcher, q).smoothedIdfs();
     }
 
     @Override
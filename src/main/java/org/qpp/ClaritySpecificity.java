@@ -3,8 +3,10 @@ package org.qpp;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
+import org.experiments.Settings;
+import org.feedback.RelevanceModel;
 import org.feedback.RelevanceModelConditional;
-import org.feedback.RelevanceModelIId;
+import org.feedback.TermOrdinalRelevanceModel;
 import org.evaluator.RetrievedResults;
 import org.trec.TRECQuery;
 
@@ -16,7 +18,9 @@ public class ClaritySpecificity extends BaseIDFSpecificity {
     @Override
     public double computeSpecificity(Query q, RetrievedResults retInfo, TopDocs topDocs, int k) { // retInfo is unused
         try {
-            RelevanceModelIId rlm = new RelevanceModelConditional(searcher, new TRECQuery(q), topDocs, k);
+            RelevanceModel rlm = Settings.useTermOrdinals()?
+                    new TermOrdinalRelevanceModel(searcher, new TRECQuery(q), topDocs, k) :
+                    new RelevanceModelConditional(searcher, new TRECQuery(q), topDocs, k);
             rlm.computeFdbkWeights();
             return rlm.getQueryClarity() * maxIDF(q);
         }
@@ -3,10 +3,10 @@ package org.qpp;
 import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
 import org.evaluator.RetrievedResults;
 import java.io.IOException;
-import java.util.Arrays;
 
 public class NQCSpecificity extends BaseIDFSpecificity {
     public NQCSpecificity(IndexSearcher searcher) {
@@ -18,22 +18,23 @@ public class NQCSpecificity extends BaseIDFSpecificity {
         return computeNQC(q, retInfo, k);
     }
 
-    private double computeNQC(Query q, double[] rsvs, int k) {
+    // NQC of the scores[offset, offset+n)
+    private double computeNQC(Query q, float[] scores, int offset, int n) {
         //double ref = new StandardDeviation().evaluate(rsvs);
-        double ref = Arrays.stream(rsvs).average().getAsDouble();
+        double ref = mean(scores, offset, n);
         double avgIDF = 0;
         double nqc = 0;
         double del;
-        for (double rsv: rsvs) {
-            del = rsv - ref;
+        for (int i = offset; i < offset + n; i++) {
+            del = scores[i] - ref;
             nqc += del*del;
         }
-        nqc /= (double)rsvs.length;
+        nqc /= (double)n;
 
         try {
             // dekhar jonyo je ei duto baaler modhye konta better baal!
             //avgIDF = Arrays.stream(idfs(q)).average().getAsDouble();
-            avgIDF = Arrays.stream(idfs(q)).max().getAsDouble();
+            avgIDF = maxSmoothedIDF(q);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -41,18 +42,16 @@ public class NQCSpecificity extends BaseIDFSpecificity {
     }
 
     public double computeNQC(Query q, RetrievedResults topDocs, int k) {
-        return computeNQC(q, topDocs.getRSVs(k), k);
-    }
-
-    double[] getRSVs(TopDocs topDocs) {
-        return Arrays.stream(topDocs.scoreDocs)
-                .map(scoreDoc -> scoreDoc.score)
-                .mapToDouble(d -> d)
-                .toArray();
+        return computeNQC(q, topDocs.getScores(), topDocs.getScoresOffset(), topDocs.numScores(k));
     }
 
+    // over all the scores of the list (irrespective of k)
     public double computeNQC(Query q, TopDocs topDocs, int k) {
-        return computeNQC(q, getRSVs(topDocs), k);
+        ScoreDoc[] sd = topDocs.scoreDocs;
+        float[] scores = new float[sd.length];
+        for (int i = 0; i < sd.length; i++)
+            scores[i] = sd[i].score;
+        return computeNQC(q, scores, 0, scores.length);
     }
 
     @Override
@@ -7,7 +7,6 @@ import org.apache.lucene.search.TopDocs;
 import org.evaluator.RetrievedResults;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 public class NQCSpecificityCalibrated extends BaseIDFSpecificity {
     float alpha, beta, gamma;
@@ -33,8 +32,10 @@ public class NQCSpecificityCalibrated extends BaseIDFSpecificity {
     }
 
     private double computeNQC(Query q, RetrievedResults topDocs, int k) {
-        double[] rsvs = topDocs.getRSVs(k);
-        double mean = Arrays.stream(rsvs).average().getAsDouble();
+        float[] scores = topDocs.getScores();
+        int offset = topDocs.getScoresOffset();
+        int n = topDocs.numScores(k);
+        double mean = mean(scores, offset, n);
 
         double avgIDF = 0;
         try {
@@ -45,7 +46,8 @@ public class NQCSpecificityCalibrated extends BaseIDFSpecificity {
 
 
         double nqc = 0;
-        for (double rsv: rsvs) {
+        for (int i = offset; i < offset + n; i++) {
+            double rsv = scores[i];
             double factor_1 = avgIDF;
             // only works for a square function; beta is to be even; we force it to be even
             double factor_2 = (rsv - mean)*(rsv - mean)/rsv;
@@ -55,7 +57,7 @@ public class NQCSpecificityCalibrated extends BaseIDFSpecificity {
 
             nqc += prod;
         }
-        nqc /= (double)rsvs.length;
+        nqc /= (double)n;
 
         return nqc * avgIDF; // high variance, high avgIDF -- more specificity
     }
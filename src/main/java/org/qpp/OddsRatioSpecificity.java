@@ -7,7 +7,6 @@ import org.apache.lucene.search.TopDocs;
 import org.evaluator.RetrievedResults;
 import org.trec.TRECQuery;
 
-import java.util.Arrays;
 import java.util.Set;
 import java.util.stream.DoubleStream;
 
@@ -25,15 +24,17 @@ public class OddsRatioSpecificity extends BaseIDFSpecificity {
         int topK = (int)(p*k);
         int bottomK = topK;
 
-        double[] rsvs = retInfo.getRSVs(k);
+        float[] scores = retInfo.getScores();
+        int offset = retInfo.getScoresOffset();
+        int n = retInfo.numScores(k);
         double avgIDF = 0;
         try {
-            avgIDF = Arrays.stream(idfs(q)).max().getAsDouble();
+            avgIDF = maxSmoothedIDF(q);
         }
         catch (Exception ex) { ex.printStackTrace(); }
 
-        double topAvg = Arrays.stream(rsvs).limit(topK).average().getAsDouble();
-        double bottomAvg = Arrays.stream(rsvs).skip(k-bottomK).average().getAsDouble();
+        double topAvg = mean(scores, offset, Math.min(topK, n));
+        double bottomAvg = mean(scores, offset + k-bottomK, n - (k-bottomK));
         return topAvg/bottomAvg * avgIDF;
     }
 
@@ -0,0 +1,118 @@
+package org.qpp;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+
+import java.io.IOException;
+import java.util.*;
+
+/*
+Collection statistics of the terms of a query, i.e. what the pre-retrieval predictors (and the
+idf factors of the post-retrieval ones) need. The terms are extracted once and df/cf looked up
+once (a single terms-dict seek per term via TermStates) for each distinct query on a reader;
+every predictor (and every UEF sample of the same query) then reads the cached arrays.
+The cache is per reader (weakly held), bounded and LRU.
+ */
+public class QueryTermStats {
+    static final int MAX_CACHED_QUERIES = 10000;
+    static final Map<IndexReader, Map<Query, QueryTermStats>> cache = new WeakHashMap<>();
+
+    Set<Term> termSet;
+    Term[] terms;
+    int[] df;
+    long[] cf;
+    double[] idf;           // log(N/df); 0 if the term doesn't occur in the collection
+    double[] smoothedIdf;   // log(N/max(df,1))
+    double maxIDF;          // over the terms that occur in the collection
+    double maxSmoothedIDF;  // over all the terms
+    double sumIDF;          // over the terms that occur in the collection
+
+    QueryTermStats(IndexSearcher searcher, Query q) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        long N = reader.numDocs();
+
+        termSet = new LinkedHashSet<>();
+        //+++LUCENE_COMPATIBILITY: Sad there's no #ifdef like C!
+        // 8.x CODE
+        q.createWeight(searcher, ScoreMode.COMPLETE, 1).extractTerms(termSet);
+        // 5.x CODE
+        //q.createWeight(searcher, false).extractTerms(termSet);
+        //---LUCENE_COMPATIBILITY
+        termSet = Collections.unmodifiableSet(termSet);
+
+        terms = termSet.toArray(new Term[0]);
+        df = new int[terms.length];
+        cf = new long[terms.length];
+        idf = new double[terms.length];
+        smoothedIdf = new double[terms.length];
+
+        for (int i = 0; i < terms.length; i++) {
+            TermStates termStates = TermStates.build(reader.getContext(), terms[i], true);
+            df[i] = termStates.docFreq();
+            cf[i] = termStates.totalTermFreq();
+
+            smoothedIdf[i] = Math.log(N/(double)Math.max(df[i], 1));
+            maxSmoothedIDF = i==0? smoothedIdf[i] : Math.max(maxSmoothedIDF, smoothedIdf[i]);
+            if (df[i] != 0) {
+                idf[i] = smoothedIdf[i];
+                sumIDF += idf[i];
+                if (idf[i] > maxIDF)
+                    maxIDF = idf[i];
+            }
+        }
+    }
+
+    public static QueryTermStats get(IndexSearcher searcher, Query q) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        Map<Query, QueryTermStats> perReader;
+        synchronized (cache) {
+            perReader = cache.computeIfAbsent(reader, r -> new LinkedHashMap<Query, QueryTermStats>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Query, QueryTermStats> eldest) {
+                    return size() > MAX_CACHED_QUERIES;
+                }
+            });
+            QueryTermStats stats = perReader.get(q);
+            if (stats != null)
+                return stats;
+        }
+
+        // computed outside the lock; a concurrent duplicate computation is harmless
+        QueryTermStats stats = new QueryTermStats(searcher, q);
+        synchronized (cache) {
+            perReader.put(q, stats);
+        }
+        return stats;
+    }
+
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int numTerms() { return terms.length; }
+
+    // Unmodifiable; in the order of extraction
+    public Set<Term> getTerms() { return termSet; }
+
+    public Term getTerm(int i) { return terms[i]; }
+    public int docFreq(int i) { return df[i]; }
+    public long collectionFreq(int i) { return cf[i]; }
+    public double idf(int i) { return idf[i]; }
+
+    // Shared arrays - not to be modified by the callers
+    public double[] smoothedIdfs() { return smoothedIdf; }
+
+    public double maxIDF() { return maxIDF; }
+
+    // max of smoothedIdfs() (0 if there're no terms)
+    public double maxSmoothedIDF() { return maxSmoothedIDF; }
+
+    // sum of the idfs of the terms that occur, averaged over all the query terms
+    public double avgIDF() { return sumIDF/(double)terms.length; }
+}
@@ -6,14 +6,18 @@ import org.correlation.OverlapStats;
 import org.evaluator.RetrievedResults;
 import org.experiments.QPPEvaluator;
 import org.experiments.Settings;
+import org.feedback.RelevanceModel;
 import org.feedback.RelevanceModelConditional;
-import org.feedback.RelevanceModelIId;
 import org.feedback.RetrievedDocTermInfo;
+import org.feedback.TermOrdinalRelevanceModel;
 import org.trec.TRECQuery;
 import org.evaluator.Evaluator;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import org.apache.commons.math3.stat.inference.TTest;
 
@@ -42,6 +46,20 @@ class RefListInfo {
     }
 }
 
+/*
+The reference lists of a query are retrieved together: the terms of the query are extracted
+once, an augmented query is built off them for each feedback term, and the augmented queries are
+searched in parallel by a pool of workers (rls.num_threads, the #processors by default) shared by
+all the instances, the lists coming back in the order of the feedback terms.
+The augmented queries and the per-query counts are logged at FINE (set rls.loglevel=FINE to
+see them).
+
+The cells of a parameter grid (see RLSWorkflow) share what doesn't change across them: the
+ranking of the feedback terms of a query, which depends on num_fdbk alone (the top max_sample
+terms are ranked once, and a cell with fewer samples takes their prefix, i.e. the reference
+lists of the largest num_sample are a superset of those of the others), and the reference list
+of each augmented query, retrieved once for the whole grid.
+ */
 public class RLSSpecificity implements QPPMethod {
     NQCSpecificity nqcSpecificity;
     IndexSearcher searcher;
@@ -51,6 +69,16 @@ public class RLSSpecificity implements QPPMethod {
     static float ALPHA = 0.05f; // threshold for rejection of null hypothesis
 
     static Random rnd = new Random(Settings.SEED);
+    Map<String, Integer> numSamples = new ConcurrentHashMap<>(); // #reference lists retrieved for each query (by its string form)
+
+    // shared by the cells of a grid (null otherwise)
+    Map<String, List<RetrievedDocTermInfo>> fdbkTermsCache; // num_fdbk:query -> its top max_sample feedback terms
+    Map<String, TopDocs> refListCache;  // augmented query@numWanted -> its reference list
+    int maxSamples;
+
+    static final Logger logger = Logger.getLogger(RLSSpecificity.class.getName());
+    static ExecutorService workers;
+    static int numWorkers;
 
     public RLSSpecificity(IndexSearcher searcher, int num_fdbk, int num_sample, int top_refs) {
         this.searcher = searcher;
@@ -58,12 +86,57 @@ public class RLSSpecificity implements QPPMethod {
         this.NUM_SAMPLES = num_sample;
         this.TOP_REFS = top_refs;
         nqcSpecificity = new NQCSpecificity(searcher);
+        initLogging();
+    }
+
+    // The first of a grid of cells with up to max_sample reference lists, for the cells to be made off
+    public RLSSpecificity(IndexSearcher searcher, int max_sample) {
+        this(searcher, 0, max_sample, 0);
+        this.maxSamples = max_sample;
+        fdbkTermsCache = new ConcurrentHashMap<>();
+        refListCache = new ConcurrentHashMap<>();
+    }
+
+    // A cell of the grid (num_sample <= max_sample of the grid)
+    public RLSSpecificity(RLSSpecificity grid, int num_fdbk, int num_sample, int top_refs) {
+        this.searcher = grid.searcher;
+        this.NUM_FDBK_TOP_DOCS = num_fdbk;
+        this.NUM_SAMPLES = num_sample;
+        this.TOP_REFS = top_refs;
+        this.nqcSpecificity = grid.nqcSpecificity;
+        this.fdbkTermsCache = grid.fdbkTermsCache;
+        this.refListCache = grid.refListCache;
+        this.maxSamples = Math.max(grid.maxSamples, num_sample);
+    }
+
+    static void initLogging() {
+        Settings.initLogging(logger, "rls.loglevel");
     }
 
-    // Returns q + t as a new query
-    Query createAugmented(TRECQuery q, String newTerm) throws IOException {
+    // the search workers (daemons, so that they don't keep the JVM alive)
+    static synchronized ExecutorService workers() {
+        if (workers == null) {
+            Properties prop = Settings.getProp();
+            numWorkers = Integer.parseInt(prop==null? "0" : prop.getProperty("rls.num_threads", "0"));
+            if (numWorkers <= 0)
+                numWorkers = Runtime.getRuntime().availableProcessors();
+            workers = Executors.newFixedThreadPool(numWorkers, r -> {
+                Thread thread = new Thread(r, "rls-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    static synchronized int numWorkers() {
+        workers();
+        return numWorkers;
+    }
+
+    // Returns q + t as a new query (terms being the terms of q)
+    Query createAugmented(Set<Term> terms, String newTerm) {
         BooleanQuery.Builder qb = new BooleanQuery.Builder();
-        Set<Term> terms = q.getQueryTerms(searcher);
         String fieldName = null;
         TermQuery tq;
 
@@ -79,46 +152,65 @@ public class RLSSpecificity implements QPPMethod {
     
     // Different to UEF, the different ranked lists are not to be sampled as subsets
     // of the initial list but are to be constructed by retrieving on augmented queries
-    Set<RetrievedDocTermInfo> topFdbkTerms(TRECQuery q, TopDocs topDocs) throws Exception {
-        RelevanceModelIId rlm = new RelevanceModelConditional(searcher, q, topDocs, NUM_FDBK_TOP_DOCS);
-        rlm.computeFdbkWeights();
-        Set<String> qTerms = q.getQueryTerms(searcher).stream().map(x->x.text()).collect(Collectors.toSet());
+    // in descending order of their weights (the order in which the reference lists are taken)
+    List<RetrievedDocTermInfo> topFdbkTerms(TRECQuery q, Set<Term> terms, TopDocs topDocs) throws Exception {
+        if (fdbkTermsCache == null)
+            return rankFdbkTerms(q, terms, topDocs, NUM_SAMPLES);
+
+        String key = NUM_FDBK_TOP_DOCS + ":" + q;
+        List<RetrievedDocTermInfo> ranked = fdbkTermsCache.get(key);
+        if (ranked == null) {
+            ranked = rankFdbkTerms(q, terms, topDocs, maxSamples);
+            fdbkTermsCache.put(key, ranked);
+        }
+        return ranked.subList(0, Math.min(NUM_SAMPLES, ranked.size()));
+    }
 
-        return
-            rlm
-            .getRetrievedDocsTermStats()
-            .getTermStats()
-            .values().stream()
-            .sorted(RetrievedDocTermInfo::compareTo)
-            .filter(x -> !qTerms.contains(x.getTerm()))
-            .limit(NUM_SAMPLES)
-            .collect(Collectors.toSet());
+    List<RetrievedDocTermInfo> rankFdbkTerms(TRECQuery q, Set<Term> terms, TopDocs topDocs, int numTerms) throws Exception {
+        RelevanceModel rlm = Settings.useTermOrdinals()?
+                new TermOrdinalRelevanceModel(searcher, q, topDocs, NUM_FDBK_TOP_DOCS) :
+                new RelevanceModelConditional(searcher, q, topDocs, NUM_FDBK_TOP_DOCS);
+        rlm.computeFdbkWeights();
+        Set<String> qTerms = terms.stream().map(x->x.text()).collect(Collectors.toSet());
+        return rlm.topTerms(numTerms, qTerms);
     }
 
     List<Query> generateAugmentedQueries(TRECQuery q, TopDocs topDocs) throws Exception {
-        Set<RetrievedDocTermInfo> topTermWts = topFdbkTerms(q, topDocs); // NUM_SAMPLES feedback terms
+        Set<Term> terms = q.getQueryTerms(searcher); // extracted once for all the augmented queries
+        List<RetrievedDocTermInfo> topTermWts = topFdbkTerms(q, terms, topDocs); // NUM_SAMPLES feedback terms
         List<Query> augmented_queries = new ArrayList<>();
         /* for each feedback term */
         for (RetrievedDocTermInfo termInfo: topTermWts) {
             String term = termInfo.getTerm();
-            Query augmented_query = createAugmented(q, term);
+            Query augmented_query = createAugmented(terms, term);
             augmented_queries.add(augmented_query);
         }
         return augmented_queries;
     }
 
-    /* create a list of reference queries */
-    List<QueryAndTopDocs> getReferenceLists(Query q, TopDocs topDocs, int numWanted) throws Exception {
-        List<Query> augmented_queries = generateAugmentedQueries(new TRECQuery(q), topDocs);
-        augmented_queries.stream().forEach(System.out::println);
+    /* the search for the reference list of an augmented query (run by the workers unless cached) */
+    Future<TopDocs> submit(Query q_augmented, int numWanted) {
+        TopDocs cached = refListCache==null? null : refListCache.get(q_augmented + "@" + numWanted);
+        return cached != null?
+                CompletableFuture.completedFuture(cached) :
+                workers().submit(() -> searcher.search(q_augmented, numWanted));
+    }
 
-        /* list of augmented <query + topdocs> objects */
-        List<QueryAndTopDocs> refLists = new ArrayList<>();
-        for (Query q_augmented: augmented_queries) {
-            QueryAndTopDocs queryAndTopDocs = new QueryAndTopDocs(q_augmented, searcher.search(q_augmented, numWanted));
-            refLists.add(queryAndTopDocs);
+    /* wait for the reference list of an augmented query */
+    QueryAndTopDocs take(Query q_augmented, Future<TopDocs> pending, int numWanted) throws IOException {
+        try {
+            TopDocs topDocs = pending.get();
+            if (refListCache != null)
+                refListCache.putIfAbsent(q_augmented + "@" + numWanted, topDocs);
+            return new QueryAndTopDocs(q_augmented, topDocs);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
         }
-        return refLists;
     }
 
     void computeNQCEstimates(List<TRECQuery> queries) throws Exception {
@@ -144,7 +236,6 @@ public class RLSSpecificity implements QPPMethod {
     List<QueryAndTopDocs> filterAndPolarize(Query orig_q, TopDocs retList,
                                             List<QueryAndTopDocs> refLists) throws IOException {
         List<QueryAndTopDocs> queryAndTopDocsList = new ArrayList<>(refLists.size());
-        System.out.println(String.format("Query %s: #ref lists = %d", orig_q.toString(), refLists.size()));
 
         int numPos = 0;
         double [] original_query_rsv, augmented_query_rsv;
@@ -194,31 +285,69 @@ public class RLSSpecificity implements QPPMethod {
         return queryAndTopDocsList;
     }
 
+    /*
+    The reference lists are taken (polarized and added to the estimate) one at a time in the order
+    of the feedback terms, with their searches submitted all at once, or, in the adaptive mode (see
+    SampleStopping), running ahead of the lists taken by no more than the number of workers, until
+    the estimate (the sim-weighted average of the specificities of the polarized lists) settles;
+    the searches still pending then are cancelled, and only the lists taken are counted.
+     */
     @Override
     public double computeSpecificity(Query q, RetrievedResults retInfo, TopDocs topDocs, int k) {
         final float p = 0.9f;
-        List<QueryAndTopDocs> refLists;
         List<QueryAndTopDocs> polarizedRefLists;
         double sim;
         double aggr_specificity = 0;
         double aggr_sim = 0;
+        SampleStopping stopping = SampleStopping.fromSettings();
+        int numRetrieved = 0, numPolarized = 0;
+        Deque<Future<TopDocs>> pending = new ArrayDeque<>();
         try {
-            refLists = getReferenceLists(q, topDocs, topDocs.scoreDocs.length);
-            polarizedRefLists = filterAndPolarize(q, topDocs, refLists);
-            for (QueryAndTopDocs queryAndTopDocs: polarizedRefLists) {
+            List<Query> augmented_queries = generateAugmentedQueries(new TRECQuery(q), topDocs);
+            if (logger.isLoggable(Level.FINE))
+                augmented_queries.forEach(x -> logger.fine(x.toString()));
+            int numWanted = topDocs.scoreDocs.length;
+            int lookahead = stopping.enabled()? numWorkers() : augmented_queries.size();
+            boolean converged = false;
+
+            for (int i = 0; i < augmented_queries.size() && !converged; i++) {
+                while (pending.size() < lookahead && i + pending.size() < augmented_queries.size())
+                    pending.add(submit(augmented_queries.get(i + pending.size()), numWanted));
+                QueryAndTopDocs refList = take(augmented_queries.get(i), pending.poll(), numWanted);
+                numRetrieved++;
+
+                polarizedRefLists = filterAndPolarize(q, topDocs, Collections.singletonList(refList));
+                if (polarizedRefLists.isEmpty())
+                    continue;
+                QueryAndTopDocs queryAndTopDocs = polarizedRefLists.get(0);
+                double previous = aggr_sim==0? 0 : aggr_specificity/aggr_sim;
                 sim = OverlapStats.computeRBO(topDocs, queryAndTopDocs.topDocs, k, p);
                 if (!queryAndTopDocs.pos)
                     sim = -1*sim + 1;
                 aggr_specificity += sim * queryAndTopDocs.specificity;
                 aggr_sim += sim;
+                converged = stopping.converged(++numPolarized, previous, aggr_specificity/aggr_sim);
             }
         }
         catch (Exception ex) {
             ex.printStackTrace();
         }
+        finally {
+            for (Future<TopDocs> f : pending)
+                f.cancel(true);
+        }
+
+        numSamples.put(q.toString(), numRetrieved);
+        if (stopping.enabled())
+            logger.info(String.format("%s: %d of %d reference lists for query %s", name(), numRetrieved, NUM_SAMPLES, q));
+        else
+            logger.fine(String.format("Query %s: #ref lists = %d, #polarized = %d", q, numRetrieved, numPolarized));
         return aggr_specificity/aggr_sim;
     }
 
+    // the number of reference lists retrieved for the query (when last estimated); 0 if it wasn't
+    public int getNumSamples(Query q) { return numSamples.getOrDefault(q.toString(), 0); }
+
     @Override
     public String name() {
         return "rls";
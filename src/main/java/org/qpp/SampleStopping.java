@@ -0,0 +1,31 @@
+package org.qpp;
+
+import org.experiments.Settings;
+
+/*
+Adaptive number of samples for the sampling based predictors (UEF, RLS): the samples are taken
+in order, and the sampling stops once the running estimate has settled, i.e. once a sample
+(after at least minSamples of them) moves it by no more than tolerance relative to its value.
+The estimator stays the same, only computed over the samples taken. A tolerance of 0 (the
+default, qpp.sampling.tolerance) takes all the samples.
+ */
+class SampleStopping {
+    double tolerance;
+    int minSamples;
+
+    SampleStopping(double tolerance, int minSamples) {
+        this.tolerance = tolerance;
+        this.minSamples = minSamples;
+    }
+
+    static SampleStopping fromSettings() {
+        return new SampleStopping(Settings.getSamplingTolerance(), Settings.getMinSamples());
+    }
+
+    boolean enabled() { return tolerance > 0; }
+
+    // whether to stop after the n-th sample moved the estimate from previous to current
+    boolean converged(int n, double previous, double current) {
+        return tolerance > 0 && n >= minSamples && Math.abs(current - previous) <= tolerance*Math.abs(previous);
+    }
+}
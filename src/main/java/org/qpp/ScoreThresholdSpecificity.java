@@ -126,7 +126,7 @@ public class ScoreThresholdSpecificity extends NQCSpecificity {
 
     @Override
     public double computeSpecificity(Query q, RetrievedResults retInfo, TopDocs topDocs, int k) {
-        rsvs = getRSVs(topDocs);
+        rsvs = Arrays.stream(topDocs.scoreDocs).mapToDouble(scoreDoc -> scoreDoc.score).toArray();
         s_min = (float)rsvs[rsvs.length-1];
         s_mu = (float)(Arrays.stream(rsvs).average().getAsDouble());
         s_std = 0;
@@ -6,31 +6,63 @@ import org.apache.lucene.search.TopDocs;
 import org.correlation.OverlapStats;
 import org.experiments.Settings;
 import org.feedback.RelevanceModelConditional;
-import org.feedback.RelevanceModelIId;
+import org.feedback.PerDocTermVector;
+import org.feedback.RelevanceModel;
+import org.feedback.RetrievedDocsTermStats;
+import org.feedback.TermOrdinalRelevanceModel;
+import org.feedback.TermVectors;
 import org.evaluator.RetrievedResults;
 import org.trec.TRECQuery;
 
 import java.util.Arrays;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.lucene.search.TotalHits;
 
 
+/*
+UEF: the base predictor scaled by how stable the list is under reranking by relevance models
+estimated off random samples of its top docs. The samples are independent of each other and
+are drawn in parallel, each with an RNG of its own seeded off the query and the sample number
+(see sampleRandom), so that the estimate of a query doesn't depend on the threads or on which
+queries were estimated before it. The term vectors of the top docs are read once per query and
+shared (read-only) by the relevance models of all the samples.
+In the adaptive mode (see SampleStopping) the samples are drawn in parallel batches, and the
+estimate is taken up to the first sample (in order) at which the mean rank distance settles, so
+that the number of samples of a query doesn't depend on the batches either. The number of samples
+of a query is then logged at INFO (uef.loglevel=OFF silences it, as rls.loglevel does for RLS).
+ */
 public class UEFSpecificity implements QPPMethod {
     BaseIDFSpecificity qppMethod;
 
-    static Random rnd = new Random(Settings.SEED);
     static final int NUM_SAMPLES = 10;
+    Map<String, Integer> numSamples = new ConcurrentHashMap<>(); // #samples taken for each query (by its string form)
+
+    static final Logger logger = Logger.getLogger(UEFSpecificity.class.getName());
 
     public UEFSpecificity(BaseIDFSpecificity qppMethod) {
         this.qppMethod = qppMethod;
+        Settings.initLogging(logger, "uef.loglevel");
+    }
+
+    // The RNG of the i-th sample of a query (keyed by its string form)
+    static Random sampleRandom(Query q, int i) {
+        long seed = Settings.SEED;
+        seed = 31*seed + q.toString().hashCode();
+        seed = 31*seed + i;
+        // spread the bits (splitmix64 finalizer), as the seeds of consecutive samples differ by 1
+        seed = (seed ^ (seed >>> 30)) * 0xbf58476d1ce4e5b9L;
+        seed = (seed ^ (seed >>> 27)) * 0x94d049bb133111ebL;
+        return new Random(seed ^ (seed >>> 31));
     }
 
-    TopDocs sampleTopDocs(TopDocs topDocs, int M, int k) {
+    TopDocs sampleTopDocs(TopDocs topDocs, int M, int k, Random rnd) {
 //        ScoreDoc[] sampledScoreDocs = new ScoreDoc[k];
         ScoreDoc[] sampledScoreDocs = new ScoreDoc[Math.min(topDocs.scoreDocs.length, k)];
         List<ScoreDoc> sdList = new ArrayList(Arrays.asList(topDocs.scoreDocs));
@@ -44,33 +76,66 @@ public class UEFSpecificity implements QPPMethod {
         //---LUCENE_COMPATIBILITY
     }
 
+    // rank distance between the list and its reranking by the RLM of the i-th sample (0 if the sample fails);
+    // the vectors of the docs of the list are either docTermVecs or termVecs (the one of the engine in use)
+    double sampleRankDist(Query q, TopDocs topDocs, int k, int i,
+                          Map<Integer, PerDocTermVector> docTermVecs, TermVectors termVecs) {
+        TopDocs sampledTopDocs = sampleTopDocs(topDocs, 3 * k, k, sampleRandom(q, i));
+        try {
+            RelevanceModel rlm = termVecs != null?
+                new TermOrdinalRelevanceModel(qppMethod.searcher, new TRECQuery(q), sampledTopDocs, k, termVecs) :
+                new RelevanceModelConditional(qppMethod.searcher, new TRECQuery(q), sampledTopDocs, k, docTermVecs);
+            rlm.computeFdbkWeights();
+            TopDocs topDocs_rr = rlm.rerankDocs();
+            return OverlapStats.computeRankDist(topDocs, topDocs_rr);
+        }
+        catch (NullPointerException nex) { /* next sample */ }
+        catch (IOException ioex) { ioex.printStackTrace(); } catch (Exception ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+        return 0;
+    }
+
     @Override
     public double computeSpecificity(Query q, RetrievedResults retInfo, TopDocs topDocs, int k) {
-        TopDocs topDocs_rr = null;
-        double avgRankDist = 0;
-        RelevanceModelIId rlm = null;
-
-        for (int i=0; i < NUM_SAMPLES; i++) {
-            TopDocs sampledTopDocs = sampleTopDocs(topDocs, 3 * k, k);
-            try {
-                rlm = new RelevanceModelConditional(
-                    qppMethod.searcher, new TRECQuery(q), sampledTopDocs, k);
-                rlm.computeFdbkWeights();
-            }
-            catch (NullPointerException nex) { continue; /* next sample */ }
-            catch (IOException ioex) { ioex.printStackTrace(); } catch (Exception ex) {
-                Logger.getLogger(UEFSpecificity.class.getName()).log(Level.SEVERE, null, ex);
-            }
+        Map<Integer, PerDocTermVector> docTermVecs = null;
+        TermVectors termVecs = null;
+        try {
+            if (Settings.useTermOrdinals())
+                termVecs = TermVectors.read(qppMethod.searcher.getIndexReader(), topDocs);
+            else
+                docTermVecs = RetrievedDocsTermStats.readTermVectors(qppMethod.searcher.getIndexReader(), topDocs);
+        }
+        catch (IOException ioex) { ioex.printStackTrace(); /* each sample reads its own */ }
+        final Map<Integer, PerDocTermVector> sharedDocTermVecs = docTermVecs;
+        final TermVectors sharedTermVecs = termVecs;
 
-            topDocs_rr = rlm.rerankDocs();
-            double rankDist = OverlapStats.computeRankDist(topDocs, topDocs_rr);
-            avgRankDist += rankDist;
+        SampleStopping stopping = SampleStopping.fromSettings();
+        int batchSize = stopping.enabled()? Math.max(1, ForkJoinPool.getCommonPoolParallelism()) : NUM_SAMPLES;
+        double sumRankDist = 0;
+        int n = 0;
+        boolean converged = false;
+        while (n < NUM_SAMPLES && !converged) {
+            double[] rankDists = IntStream.range(n, Math.min(n + batchSize, NUM_SAMPLES)).parallel()
+                    .mapToDouble(i -> sampleRankDist(q, topDocs, k, i, sharedDocTermVecs, sharedTermVecs))
+                    .toArray();
+            for (int j = 0; j < rankDists.length && !converged; j++) { // in the order of the samples
+                double previous = n==0? 0 : sumRankDist/n;
+                sumRankDist += rankDists[j];
+                n++;
+                converged = stopping.converged(n, previous, sumRankDist/n);
+            }
         }
 
-        double rankSim = OverlapStats.computeRankDist(topDocs, topDocs_rr);
-        return ((double)NUM_SAMPLES/avgRankDist) * qppMethod.computeSpecificity(q, retInfo, topDocs, k);
+        numSamples.put(q.toString(), n);
+        if (stopping.enabled())
+            logger.info(String.format("%s: %d of %d samples for query %s", name(), n, NUM_SAMPLES, q));
+        return ((double)n/sumRankDist) * qppMethod.computeSpecificity(q, retInfo, topDocs, k);
     }
 
+    // the number of samples taken for the query (when last estimated); 0 if it wasn't
+    public int getNumSamples(Query q) { return numSamples.getOrDefault(q.toString(), 0); }
+
     @Override
     public String name() {
         return String.format("uef_%s", this.qppMethod.name());
@@ -1,13 +1,9 @@
 package org.qpp;
 
-import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TopDocs;
 import org.evaluator.RetrievedResults;
-import org.trec.TRECQuery;
-
-import java.util.Set;
 
 public class WIGSpecificity extends BaseIDFSpecificity {
 
@@ -17,22 +13,24 @@ public class WIGSpecificity extends BaseIDFSpecificity {
 
     @Override
     public double computeSpecificity(Query q, RetrievedResults retInfo, TopDocs topDocs, int k) {
-        double[] rsvs = retInfo.getRSVs(k);
+        float[] scores = retInfo.getScores();
+        int offset = retInfo.getScoresOffset();
+        int n = retInfo.numScores(k);
         double avgIDF = 0;
         int numQueryTerms = 1;
         try {
-            Set<Term> qterms = new TRECQuery(q).getQueryTerms(searcher);
-            numQueryTerms = qterms.size();
-            avgIDF = 1/maxIDF(q);
+            QueryTermStats termStats = QueryTermStats.get(searcher, q);
+            numQueryTerms = termStats.numTerms();
+            avgIDF = 1/termStats.maxIDF();
         }
         catch (Exception ex) { ex.printStackTrace(); }
 
         double wig = 0;
-        for (double rsv: rsvs) {
-            wig += (rsv - avgIDF);
+        for (int i = offset; i < offset + n; i++) {
+            wig += (scores[i] - avgIDF);
         }
-//        return wig/(double)(Math.sqrt(numQueryTerms) * rsvs.length);
-        return wig/(double)(numQueryTerms * rsvs.length);
+//        return wig/(double)(Math.sqrt(numQueryTerms) * n);
+        return wig/(double)(numQueryTerms * n);
     }
 
     @Override
@@ -5,13 +5,12 @@
 package org.trec;
 
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.Set;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreMode;
+import org.qpp.QueryTermStats;
 
 
 /**
@@ -54,14 +53,8 @@ public class TRECQuery {
 
     public void setLuceneQueryObj(Query luceneQuery) { this.luceneQuery = luceneQuery; }
     
+    // Extracted once per query (and reader) by QueryTermStats; the returned set is unmodifiable
     public Set<Term> getQueryTerms(IndexSearcher searcher) throws IOException {
-        Set<Term> terms = new HashSet<>();
-        //+++LUCENE_COMPATIBILITY: Sad there's no #ifdef like C!
-        // 8.x CODE
-        luceneQuery.createWeight(searcher, ScoreMode.COMPLETE, 1).extractTerms(terms);
-        // 5.x code
-        //luceneQuery.createWeight(searcher, false).extractTerms(terms);
-        //---LUCENE_COMPATIBILITY
-        return terms;
+        return QueryTermStats.get(searcher, luceneQuery).getTerms();
     }
 }
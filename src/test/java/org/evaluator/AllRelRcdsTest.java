@@ -0,0 +1,42 @@
+package org.evaluator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+// The process-wide registry of parsed qrels: one entry per file, replaced when the file changes
+public class AllRelRcdsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static void write(File file, String text, long lastModified) throws IOException {
+        Files.write(file.toPath(), text.getBytes(UTF_8));
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    @Test
+    public void sharedUntilModified() throws IOException {
+        File qrels = tmp.newFile("qrels.txt");
+        write(qrels, "1 0 d1 1\n1 0 d2 0\n2 0 d3 2\n", 1_000_000_000L);
+
+        AllRelRcds first = AllRelRcds.get(qrels.getPath());
+        assertSame(first, AllRelRcds.get(qrels.getPath()));
+        assertEquals(2, first.getTotalNumRel());
+
+        write(qrels, "1 0 d1 1\n1 0 d2 1\n2 0 d3 2\n", 2_000_000_000L);
+        AllRelRcds modified = AllRelRcds.get(qrels.getPath());
+        assertNotSame(first, modified);
+        assertEquals(3, modified.getTotalNumRel());
+        assertSame(modified, AllRelRcds.get(qrels.getPath()));
+
+        // the entry of the path is replaced (by one of the same length, but modified later)
+        assertEquals(2_000_000_000L, AllRelRcds.registry.get(qrels.getAbsolutePath()).lastModified);
+    }
+}
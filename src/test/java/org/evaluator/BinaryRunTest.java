@@ -0,0 +1,132 @@
+package org.evaluator;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/*
+Round trip of a run: text -> TRECRunParser -> BinaryRun -> read back, checked at each step
+against the columns of the text lines (grouped by query in the order of the file).
+ */
+public class BinaryRunTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static class Row {
+        String docName;
+        int rank;
+        float score;
+
+        Row(String docName, int rank, float score) {
+            this.docName = docName;
+            this.rank = rank;
+            this.score = score;
+        }
+    }
+
+    /*
+    A run of numQueries interleaved queries (so that the parser has to regroup them), with
+    doc names shared across queries, and the rows of each query (in file order) into expected.
+     */
+    static String makeRun(int numQueries, int numRows, Map<String, List<Row>> expected) {
+        Random rnd = new Random(42);
+        StringBuilder buff = new StringBuilder();
+        int[] ranks = new int[numQueries];
+        for (int i = 0; i < numRows; i++) {
+            int q = rnd.nextInt(numQueries);
+            String qid = String.valueOf(401 + q);
+            String docName = "FBIS" + rnd.nextInt(numRows/4 + 1) + "-" + (char)('A' + rnd.nextInt(26));
+            int rank = ++ranks[q];
+            double score = (rnd.nextDouble() - 0.2) * 30;
+            String scoreText = rnd.nextBoolean()?
+                    String.format(Locale.ROOT, "%.4f", score) : Double.toString(score);
+            buff.append(qid).append(rnd.nextBoolean()? " " : "\t").append("Q0 ").append(docName).append(' ')
+                    .append(rank).append(' ').append(scoreText).append(" myrun\n");
+            expected.computeIfAbsent(qid, k -> new ArrayList<>())
+                    .add(new Row(docName, rank, (float)Double.parseDouble(scoreText)));
+        }
+        return buff.toString();
+    }
+
+    static void assertSameRows(Map<String, List<Row>> expected, AllRetrievedResults run) {
+        assertEquals(expected.keySet(), run.queries());
+        for (Map.Entry<String, List<Row>> e : expected.entrySet()) {
+            RetrievedResults rr = run.getRetrievedResultsForQueryId(e.getKey());
+            List<Row> rows = e.getValue();
+            assertEquals(e.getKey(), rows.size(), rr.getNumRet());
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rr.start + i;
+                assertEquals(rows.get(i).docName, rr.cols.docName(row));
+                assertEquals(rows.get(i).rank, rr.cols.ranks[row]);
+                assertEquals(rows.get(i).score, rr.cols.scores[row], 0);
+            }
+        }
+    }
+
+    void roundTrip(File runFile, Map<String, List<Row>> expected) throws IOException {
+        AllRetrievedResults parsed = new AllRetrievedResults(runFile.getPath());
+        assertEquals("myrun", parsed.getRunName());
+        assertSameRows(expected, parsed);
+
+        File binFile = tmp.newFile(runFile.getName() + ".bin");
+        BinaryRun.write(parsed, binFile);
+        assertTrue(BinaryRun.isBinaryRun(binFile));
+        assertFalse(BinaryRun.isBinaryRun(runFile));
+
+        AllRetrievedResults read = new AllRetrievedResults(binFile.getPath());
+        assertEquals("myrun", read.getRunName());
+        assertSameRows(expected, read);
+        for (List<Row> rows : expected.values())
+            for (Row row : rows)
+                assertNotEquals(row.docName, -1, read.cols.findDocOrdinal(row.docName));
+        assertEquals(-1, read.cols.findDocOrdinal("not-in-the-run"));
+    }
+
+    @Test
+    public void smallRun() throws IOException {
+        Map<String, List<Row>> expected = new TreeMap<>();
+        File runFile = tmp.newFile("small.res");
+        write(new FileOutputStream(runFile), makeRun(7, 500, expected));
+        roundTrip(runFile, expected);
+    }
+
+    // large enough to be split into chunks parsed in parallel
+    @Test
+    public void chunkedRun() throws IOException {
+        Map<String, List<Row>> expected = new TreeMap<>();
+        File runFile = tmp.newFile("large.res");
+        write(new FileOutputStream(runFile), makeRun(50, 300000, expected));
+        assertTrue(runFile.length() > 2*TRECRunParser.MIN_CHUNK_SIZE);
+        roundTrip(runFile, expected);
+    }
+
+    @Test
+    public void gzippedRun() throws IOException {
+        Map<String, List<Row>> expected = new TreeMap<>();
+        File runFile = tmp.newFile("small.res.gz");
+        write(new GZIPOutputStream(new FileOutputStream(runFile)), makeRun(7, 500, expected));
+        roundTrip(runFile, expected);
+    }
+
+    @Test
+    public void zstdRun() throws IOException {
+        Map<String, List<Row>> expected = new TreeMap<>();
+        File runFile = tmp.newFile("small.res.zst");
+        write(new ZstdOutputStream(new FileOutputStream(runFile)), makeRun(7, 500, expected));
+        roundTrip(runFile, expected);
+    }
+
+    static void write(OutputStream stream, String text) throws IOException {
+        try (OutputStream out = stream) {
+            out.write(text.getBytes(UTF_8));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.evaluator;
+
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.ToIntFunction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/*
+The doc names of a run resolved to index offsets: the first doc of the index (offset 0) is a
+doc like any other, and only those that don't resolve (-1) are dropped.
+ */
+public class RankedListsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static final Map<String, Integer> OFFSETS = new HashMap<>();
+    static {
+        OFFSETS.put("d0", 0);
+        OFFSETS.put("d1", 1);
+        OFFSETS.put("d2", 2);
+        OFFSETS.put("d7", 7);
+    }
+    static final ToIntFunction<String> RESOLVER = docId -> OFFSETS.getOrDefault(docId, -1);
+
+    AllRetrievedResults run() throws IOException {
+        File runFile = tmp.newFile("run.res");
+        String text =
+                "1 Q0 d0 1 9.5 r\n" +
+                "1 Q0 d1 2 8.5 r\n" +
+                "1 Q0 unknown 3 7.5 r\n" +
+                "1 Q0 d2 4 6.5 r\n" +
+                "2 Q0 d7 1 3.0 r\n" +
+                "2 Q0 d0 2 2.0 r\n";
+        Files.write(runFile.toPath(), text.getBytes(UTF_8));
+        return new AllRetrievedResults(runFile.getPath());
+    }
+
+    static int[] docs(RankedLists lists, String qid) {
+        int q = lists.indexOf(qid);
+        int[] docs = new int[lists.end(q) - lists.start(q)];
+        for (int i = 0; i < docs.length; i++)
+            docs[i] = lists.doc(lists.start(q) + i);
+        return docs;
+    }
+
+    static int[] docs(TopDocs topDocs) {
+        return Arrays.stream(topDocs.scoreDocs).mapToInt(sd -> sd.doc).toArray();
+    }
+
+    @Test
+    public void keepsDocZero() throws IOException {
+        RankedLists lists = new RankedLists(run(), RESOLVER);
+        assertArrayEquals(new int[] {0, 1, 2}, docs(lists, "1"));
+        assertArrayEquals(new int[] {7, 0}, docs(lists, "2"));
+        assertEquals(9.5f, lists.score(lists.start(lists.indexOf("1"))), 0);
+        assertEquals(4, lists.getTopDocs("1").totalHits.value);
+    }
+
+    @Test
+    public void castToTopDocsKeepsDocZero() throws IOException {
+        Map<String, TopDocs> topDocs = run().castToTopDocs(RESOLVER);
+        assertArrayEquals(new int[] {0, 1, 2}, docs(topDocs.get("1")));
+        assertArrayEquals(new int[] {7, 0}, docs(topDocs.get("2")));
+        ScoreDoc first = topDocs.get("1").scoreDocs[0];
+        assertEquals(9.5f, first.score, 0);
+    }
+
+    // doc 0 at the top of the list is a rel doc at position 1
+    @Test
+    public void metricsOfListWithDocZero() throws IOException {
+        RankedLists lists = new RankedLists(run(), RESOLVER);
+        Map<String, Integer> rels = new HashMap<>();
+        rels.put("d0", 1);
+        rels.put("d2", 1);
+        PerQueryRelDocs relDocs = new PerQueryRelDocs("1", rels);
+        relDocs.resolveOffsets(RESOLVER);
+
+        int q = lists.indexOf("1");
+        float ap = relDocs.compute(lists.docs, lists.start(q), lists.end(q), Metric.AP);
+        assertEquals((1 + 2/3f)/2, ap, 1e-6);
+    }
+}
@@ -0,0 +1,66 @@
+package org.evaluator;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+// The hand-rolled number parsing of TRECRunParser against the JDK's
+public class TRECRunParserTest {
+
+    static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(UTF_8));
+    }
+
+    static void assertParsesAsJdk(String s) {
+        double expected = Double.parseDouble(s);
+        double actual = TRECRunParser.parseDouble(bytes(s), 0, s.length());
+        assertEquals(s, Double.doubleToLongBits(expected), Double.doubleToLongBits(actual));
+    }
+
+    @Test
+    public void parseDoubleFixedCases() {
+        String[] cases = {
+                "0", "-0", "1", "-1", "0.0", "-0.0", "1.", ".5", "-.5", "3.14159", "12.345678",
+                "0.1", "0.2", "0.3", "2.675", "1.005", "9007199254740992", "9007199254740993",
+                "12345678901234567", "123456789012345678", "0.000000000000000000001",
+                "0.0000000000000000000000001", "99999999999999999.9", "1e-5", "2.5E3", "-1.5e+10",
+                "NaN", "Infinity", "-Infinity", "4.9e-324", "1.7976931348623157e308"
+        };
+        for (String s : cases)
+            assertParsesAsJdk(s);
+    }
+
+    @Test
+    public void parseDoubleRandomScores() {
+        Random rnd = new Random(123);
+        for (int i = 0; i < 100000; i++) {
+            double d = rnd.nextDouble() * Math.pow(10, rnd.nextInt(12) - 4);
+            if (rnd.nextBoolean())
+                d = -d;
+            assertParsesAsJdk(Double.toString(d));  // shortest repr
+            assertParsesAsJdk(String.format(Locale.ROOT, "%." + rnd.nextInt(18) + "f", d));  // fixed digits
+        }
+    }
+
+    @Test
+    public void parseDoubleWithinBuffer() {
+        String s = "q1 Q0 d1 7 -12.5000 run";
+        ByteBuffer buf = bytes(s);
+        int start = s.indexOf("-12"), end = s.indexOf(" run");
+        assertEquals(-12.5, TRECRunParser.parseDouble(buf, start, end), 0);
+        assertEquals(7, TRECRunParser.parseInt(buf, s.indexOf('7'), s.indexOf('7') + 1));
+    }
+
+    @Test
+    public void parseIntAsJdk() {
+        String[] cases = {"0", "1", "-1", "42", "999999999", "-999999999", "1000000000",
+                "2147483647", "-2147483648", "007"};
+        for (String s : cases)
+            assertEquals(s, Integer.parseInt(s), TRECRunParser.parseInt(bytes(s), 0, s.length()));
+    }
+}
@@ -0,0 +1,119 @@
+package org.feedback;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.trec.FieldConstants;
+import org.trec.TRECQuery;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/*
+The relevance model over term ordinals (TermOrdinalRelevanceModel) against the one over term maps
+(RelevanceModelConditional) on the top docs of a query over a small index: the same vocabulary
+and weights, the same clarity and the same reranking (up to the rounding of the sums).
+ */
+public class TermOrdinalRelevanceModelTest {
+    static Directory dir;
+    static IndexReader reader;
+    static IndexSearcher searcher;
+
+    static final String[] VOCAB = {
+            "apple", "banana", "cherry", "date", "elder", "fig", "grape", "honeydew", "kiwi", "lemon",
+            "mango", "nectarine", "olive", "papaya", "quince", "raspberry", "strawberry", "tangerine"
+    };
+
+    @BeforeClass
+    public static void index() throws IOException {
+        FieldType withVectors = new FieldType(TextField.TYPE_STORED);
+        withVectors.setStoreTermVectors(true);
+        withVectors.freeze();
+
+        dir = new ByteBuffersDirectory();
+        Random rnd = new Random(7);
+        try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+            for (int i = 0; i < 60; i++) {
+                StringBuilder text = new StringBuilder();
+                int length = 5 + rnd.nextInt(40);
+                for (int j = 0; j < length; j++) // skewed, so that the tfs differ across the terms
+                    text.append(VOCAB[(int)(VOCAB.length * Math.pow(rnd.nextDouble(), 2))]).append(' ');
+                Document doc = new Document();
+                doc.add(new StringField(FieldConstants.FIELD_ID, "d" + i, Field.Store.YES));
+                doc.add(new Field(FieldConstants.FIELD_ANALYZED_CONTENT, text.toString(), withVectors));
+                writer.addDocument(doc);
+            }
+        }
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        reader.close();
+        dir.close();
+    }
+
+    static TRECQuery query(String... terms) {
+        BooleanQuery.Builder qb = new BooleanQuery.Builder();
+        for (String term : terms)
+            qb.add(new TermQuery(new Term(FieldConstants.FIELD_ANALYZED_CONTENT, term)), BooleanClause.Occur.SHOULD);
+        return new TRECQuery("1", qb.build());
+    }
+
+    void assertSameModel(TRECQuery query, int numWanted, int numTopDocs) throws Exception {
+        TopDocs topDocs = searcher.search(query.getLuceneQueryObj(), numWanted);
+        assertTrue(topDocs.scoreDocs.length >= numTopDocs);
+
+        RelevanceModelConditional termMaps = new RelevanceModelConditional(searcher, query, topDocs, numTopDocs);
+        termMaps.computeFdbkWeights();
+        TermOrdinalRelevanceModel ordinals = new TermOrdinalRelevanceModel(searcher, query, topDocs, numTopDocs);
+        ordinals.computeFdbkWeights();
+
+        // the vocabulary of the top docs, and the weight of each of its terms
+        Map<String, RetrievedDocTermInfo> termStats = termMaps.getRetrievedDocsTermStats().getTermStats();
+        assertEquals(termStats.size(), ordinals.vocab.length);
+        BytesRef ref = new BytesRef();
+        for (int ord : ordinals.vocab) {
+            String term = ordinals.termVectors.term(ord, ref).utf8ToString();
+            RetrievedDocTermInfo info = termStats.get(term);
+            assertNotNull(term, info);
+            assertEquals(term, info.getTf(), ordinals.tf[ord]);
+            assertEquals(term, info.getWeight(), ordinals.weights[ord], 1e-6f * info.getWeight());
+        }
+
+        assertEquals(termMaps.getQueryClarity(), ordinals.getQueryClarity(), 1e-4);
+
+        ScoreDoc[] reranked = termMaps.rerankDocs().scoreDocs;
+        ScoreDoc[] rerankedOrdinals = ordinals.rerankDocs().scoreDocs;
+        assertEquals(reranked.length, rerankedOrdinals.length);
+        for (int i = 0; i < reranked.length; i++) {
+            assertEquals("rank " + i, reranked[i].doc, rerankedOrdinals[i].doc);
+            assertEquals("rank " + i, reranked[i].score, rerankedOrdinals[i].score, 1e-4 * Math.abs(reranked[i].score));
+        }
+    }
+
+    @Test
+    public void sameAsTermMaps() throws Exception {
+        assertSameModel(query("apple", "kiwi"), 20, 20);
+    }
+
+    // the model estimated off a prefix of the list, and the whole list reranked by it
+    @Test
+    public void sameAsTermMapsOnTopDocs() throws Exception {
+        assertSameModel(query("banana", "mango", "olive"), 30, 10);
+    }
+}